@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of computing the checksums of a buffer and of encoding a digest as hex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumsBenchmark {
+    @Param({"1024", "1048576"})
+    private int size;
+
+    @Param({"md5,sha1", "md5,sha1,sha256,sha512"})
+    private String algorithms;
+
+    private byte[] data;
+
+    private byte[] digest;
+
+    private Checksums checksums;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        digest = new byte[64];
+        new Random(0).nextBytes(digest);
+
+        checksums = new Checksums(Arrays.asList(algorithms.split(",")));
+    }
+
+    @Benchmark
+    public Map<String, String> digest() {
+        checksums.update(data, 0, data.length);
+
+        return checksums.digest();
+    }
+
+    @Benchmark
+    public String encode() {
+        return Checksums.encode(digest);
+    }
+}
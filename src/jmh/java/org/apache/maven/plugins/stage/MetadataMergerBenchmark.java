@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures merging the staged metadata with the metadata of a synthetic target repository through the file
+ * Wagon. The staged metadata is consumed by the merge, so it is written again before every invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MetadataMergerBenchmark {
+    @Param({"1000", "10000"})
+    private int artifacts;
+
+    @Param({"1", "4", "16"})
+    private int threads;
+
+    private SyntheticRepository target;
+
+    private File basedir;
+
+    private Repository repository;
+
+    private WagonManager wagonManager;
+
+    private Logger logger = new ConsoleLogger(Logger.LEVEL_DISABLED, "benchmark");
+
+    private Wagon wagon;
+
+    @Setup
+    public void setUp() throws IOException, WagonException {
+        target = SyntheticRepository.create(
+                new File("target/benchmark/target-" + artifacts).getAbsoluteFile(), artifacts, 2, 16);
+
+        basedir = new File("target/benchmark/metadata-" + artifacts).getAbsoluteFile();
+
+        repository = new Repository("target", target.getBasedir().toURI().toString());
+
+        wagonManager = FileWagonManager.create(FileWagon::new);
+
+        wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+    }
+
+    @Setup(Level.Invocation)
+    public void stage() throws IOException {
+        FileUtils.deleteDirectory(basedir);
+
+        for (String artifact : target.getArtifacts()) {
+            int idx = artifact.lastIndexOf('/');
+
+            FileUtils.writeByteArrayToFile(
+                    new File(basedir, artifact + "/" + RepositoryCopier.MAVEN_METADATA),
+                    SyntheticRepository.metadata(
+                            artifact.substring(0, idx).replace('/', '.'),
+                            artifact.substring(idx + 1),
+                            SyntheticRepository.VERSION));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, WagonException {
+        wagon.disconnect();
+
+        FileUtils.deleteDirectory(basedir);
+        FileUtils.deleteDirectory(target.getBasedir());
+    }
+
+    @Benchmark
+    public void merge() throws IOException, WagonException {
+        MetadataMerger merger =
+                new MetadataMerger(basedir, Arrays.asList(RepositoryCopier.MD5, RepositoryCopier.SHA1));
+
+        ParallelDownloader downloader = new ParallelDownloader(wagonManager, repository, threads, logger);
+
+        downloader.start(wagon, merger.sink());
+
+        for (String artifact : target.getArtifacts()) {
+            downloader.submit(artifact + "/" + RepositoryCopier.MAVEN_METADATA);
+        }
+
+        downloader.finish();
+
+        merger.checkFailures(logger);
+    }
+}
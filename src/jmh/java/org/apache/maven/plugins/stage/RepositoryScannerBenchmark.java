@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures listing a synthetic repository with the {@link RepositoryScanner} through the file Wagon.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RepositoryScannerBenchmark {
+    @Param({"1000", "10000"})
+    private int artifacts;
+
+    @Param({"2", "4"})
+    private int depth;
+
+    @Param({"1", "4", "16"})
+    private int threads;
+
+    private File basedir;
+
+    private Repository repository;
+
+    private WagonManager wagonManager;
+
+    private Logger logger = new ConsoleLogger(Logger.LEVEL_DISABLED, "benchmark");
+
+    private Wagon wagon;
+
+    @Setup
+    public void setUp() throws IOException, WagonException {
+        basedir = new File("target/benchmark/scanner-" + artifacts + "-" + depth).getAbsoluteFile();
+
+        SyntheticRepository.create(basedir, artifacts, depth, 16);
+
+        repository = new Repository("source", basedir.toURI().toString());
+
+        wagonManager = FileWagonManager.create(FileWagon::new);
+
+        wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, WagonException {
+        wagon.disconnect();
+
+        FileUtils.deleteDirectory(basedir);
+    }
+
+    @Benchmark
+    public int scan() throws WagonException {
+        AtomicInteger files = new AtomicInteger();
+
+        new RepositoryScanner(wagonManager, repository, threads, logger)
+                .scan(wagon, "", path -> files.incrementAndGet());
+
+        return files.get();
+    }
+}
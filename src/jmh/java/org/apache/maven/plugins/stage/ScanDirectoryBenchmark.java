@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing a synthetic work directory to the staging archive, as
+ * {@link DefaultRepositoryCopier#scanDirectory(File, File, StagingArchive, PathSet)} does after the
+ * download.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanDirectoryBenchmark {
+    @Param({"1000", "5000"})
+    private int artifacts;
+
+    @Param({"1024", "262144"})
+    private int size;
+
+    @Param({"1", "4"})
+    private int compressionThreads;
+
+    @Param({"1", "4"})
+    private int shards;
+
+    private File basedir;
+
+    private List<File> archives;
+
+    @Setup
+    public void setUp() throws IOException {
+        basedir = new File("target/benchmark/work-" + artifacts + "-" + size).getAbsoluteFile();
+
+        SyntheticRepository.create(basedir, artifacts, 2, size);
+
+        archives = new ArrayList<>();
+
+        for (int i = 1; i <= shards; i++) {
+            archives.add(new File("target/benchmark/staging-" + i + ".zip").getAbsoluteFile());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(basedir);
+
+        for (File archive : archives) {
+            archive.delete();
+        }
+    }
+
+    @Benchmark
+    public long scanDirectory() throws IOException {
+        try (StagingArchive archive = new StagingArchive(
+                archives,
+                SyntheticRepository.VERSION,
+                Arrays.asList(RepositoryCopier.MD5, RepositoryCopier.SHA1),
+                compressionThreads)) {
+            DefaultRepositoryCopier.scanDirectory(basedir, basedir, archive, new PathSet());
+        }
+
+        return archives.get(0).length();
+    }
+}
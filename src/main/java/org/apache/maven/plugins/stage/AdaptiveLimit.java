@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Limits the number of transfers in flight, adjusting the limit to how well the repository copes, the way TCP
+ * adjusts its congestion window. The limit grows by one for every limit's worth of transfers that succeed, and is
+ * halved when a transfer fails or is much slower to get going than usual. It never exceeds the number of workers
+ * nor drops below one, and starts at the number of workers.
+ * <p>
+ * How slow a transfer is to get going is the time from its start to its first byte, which does not depend on the
+ * size of the file. It is compared to a moving average of that time. As a single event often shows up in several
+ * transfers at once, the limit is halved at most once a second.
+ * </p>
+ */
+class AdaptiveLimit implements TransferListener {
+    /**
+     * The weight of a new latency in the moving average.
+     */
+    private static final double WEIGHT = 1.0 / 16;
+
+    /**
+     * Latencies up to this much over twice the average are taken as noise.
+     */
+    private static final long SLACK = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+
+    private final int max;
+
+    private final Logger logger;
+
+    private double limit;
+
+    private int inFlight;
+
+    private double averageLatency = -1;
+
+    private long lastDecrease = System.nanoTime() - DECREASE_INTERVAL;
+
+    /**
+     * A Wagon transfers one file at a time, and every worker uses its own Wagon
+     */
+    private final ThreadLocal<Long> initiated = new ThreadLocal<>();
+
+    /**
+     * @param name what the transfers are about, for logging
+     * @param max the number of workers
+     * @param logger the logger
+     */
+    AdaptiveLimit(String name, int max, Logger logger) {
+        this.name = name;
+        this.max = Math.max(1, max);
+        this.logger = logger;
+        this.limit = this.max;
+    }
+
+    /**
+     * Waits until another transfer may start.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+
+        inFlight++;
+    }
+
+    /**
+     * Ends a transfer started with {@link #acquire()}.
+     */
+    synchronized void release() {
+        inFlight--;
+
+        notifyAll();
+    }
+
+    /**
+     * Records a successful transfer.
+     */
+    synchronized void succeeded() {
+        int before = (int) limit;
+
+        limit = Math.min(max, limit + 1 / limit);
+
+        if ((int) limit > before) {
+            logger.debug(name + ": raising the number of concurrent transfers to " + (int) limit);
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records a transfer that failed in a way that may go away, such as being throttled by the server.
+     */
+    synchronized void failed() {
+        decrease("a failed transfer");
+    }
+
+    /**
+     * @return the number of transfers that may currently be in flight
+     */
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    private void decrease(String reason) {
+        long now = System.nanoTime();
+
+        if (now - lastDecrease < DECREASE_INTERVAL || limit <= 1) {
+            return;
+        }
+
+        lastDecrease = now;
+
+        limit = Math.max(1, limit / 2);
+
+        logger.debug(name + ": lowering the number of concurrent transfers to " + (int) limit + " after " + reason);
+    }
+
+    private synchronized void latency(long nanos) {
+        if (averageLatency < 0) {
+            averageLatency = nanos;
+
+            return;
+        }
+
+        if (nanos > 2 * averageLatency + SLACK) {
+            decrease("a slow response");
+        }
+
+        averageLatency += WEIGHT * (nanos - averageLatency);
+    }
+
+    public void transferInitiated(TransferEvent transferEvent) {
+        initiated.set(System.nanoTime());
+    }
+
+    public void transferStarted(TransferEvent transferEvent) {
+        Long start = initiated.get();
+
+        if (start != null) {
+            initiated.remove();
+
+            latency(System.nanoTime() - start);
+        }
+    }
+
+    public void transferProgress(TransferEvent transferEvent, byte[] buffer, int length) {}
+
+    public void transferCompleted(TransferEvent transferEvent) {}
+
+    public void transferError(TransferEvent transferEvent) {
+        initiated.remove();
+    }
+
+    public void debug(String message) {}
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+/**
+ * The format of the archives deployed to the target repository, and how they are unpacked on the target machine.
+ * <p>
+ * A zip file has its directory at the end, so it is uploaded whole before it is unpacked. A tar file can be
+ * unpacked as it arrives: it is uploaded into a named pipe that <code>tar</code> reads from, so the target needs
+ * no room for the archive and no pass of its own to unpack it. Tar entries carry their size up front, so they are
+ * never written while their bytes are still being downloaded, and they are compressed on a single thread if at
+ * all.
+ * </p>
+ */
+enum ArchiveFormat {
+    ZIP("zip") {
+        @Override
+        ArchiveOutputStream<ArchiveEntry> open(File archive) throws IOException {
+            return cast(new ZipArchiveOutputStream(archive));
+        }
+
+        @Override
+        ArchiveEntry newEntry(String name, long size, boolean compressed) {
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(System.currentTimeMillis());
+            entry.setMethod(compressed ? ZipEntry.STORED : ZipEntry.DEFLATED);
+
+            return entry;
+        }
+
+        @Override
+        String unpackCommand(String directory, String archive) {
+            // We use the super quiet option here as all the noise seems to kill/stall the connection
+            return "unzip -o -qq -d " + directory + " " + archive;
+        }
+
+        @Override
+        boolean isStreamed() {
+            return false;
+        }
+    },
+
+    TAR("tar") {
+        @Override
+        ArchiveOutputStream<ArchiveEntry> open(File archive) throws IOException {
+            return tar(new BufferedOutputStream(Files.newOutputStream(archive.toPath())));
+        }
+
+        @Override
+        String unpackCommand(String directory, String archive) {
+            return "tar -x -f " + archive + " -C " + directory;
+        }
+    },
+
+    TGZ("tar.gz") {
+        @Override
+        ArchiveOutputStream<ArchiveEntry> open(File archive) throws IOException {
+            return tar(new GzipCompressorOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(archive.toPath()))));
+        }
+
+        @Override
+        String unpackCommand(String directory, String archive) {
+            return "tar -x -z -f " + archive + " -C " + directory;
+        }
+    };
+
+    private final String extension;
+
+    ArchiveFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return the extension of the archive files, without the leading dot
+     */
+    String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @param archive the file to write
+     * @return a stream writing an archive of this format
+     */
+    abstract ArchiveOutputStream<ArchiveEntry> open(File archive) throws IOException;
+
+    /**
+     * @param name the name of the entry
+     * @param size the number of bytes of the entry
+     * @param compressed whether the content is compressed already, and so is better stored as it is
+     * @return an entry for the stream returned by {@link #open(File)}
+     */
+    ArchiveEntry newEntry(String name, long size, boolean compressed) {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        entry.setModTime(System.currentTimeMillis());
+
+        return entry;
+    }
+
+    /**
+     * @return whether an entry can be started before its size is known
+     */
+    boolean isSizeDeferred() {
+        return this == ZIP;
+    }
+
+    /**
+     * @param directory the directory to unpack the archive in
+     * @param archive the path of the archive on the target machine
+     * @return the command unpacking the archive
+     */
+    abstract String unpackCommand(String directory, String archive);
+
+    /**
+     * @return whether the archive is unpacked while it is uploaded
+     */
+    boolean isStreamed() {
+        return true;
+    }
+
+    /**
+     * @param name the name of a format, or the extension of its files
+     * @return the format
+     * @throws IllegalArgumentException if there is no such format
+     */
+    static ArchiveFormat forName(String name) {
+        for (ArchiveFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown archive format: " + name + ", expected zip, tar or tgz");
+    }
+
+    private static ArchiveOutputStream<ArchiveEntry> tar(OutputStream out) {
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+
+        // Repository paths are often longer than the 100 characters of a plain tar header
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+        return cast(tar);
+    }
+
+    /**
+     * The entries are created by {@link #newEntry(String, long, boolean)} to match the stream.
+     */
+    @SuppressWarnings("unchecked")
+    private static ArchiveOutputStream<ArchiveEntry> cast(ArchiveOutputStream<? extends ArchiveEntry> out) {
+        return (ArchiveOutputStream<ArchiveEntry>) out;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+
+/**
+ * Computes several checksums of the same content in a single pass. The algorithms are named by the extension of
+ * their checksum files: {@link RepositoryCopier#MD5}, {@link RepositoryCopier#SHA1},
+ * {@link RepositoryCopier#SHA256} and {@link RepositoryCopier#SHA512}.
+ * <p>
+ * An instance is reused for any number of contents, {@link #digest()} resets it. Instances are not thread safe.
+ * </p>
+ */
+class Checksums {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+
+    private final byte[] single = new byte[1];
+
+    private long count;
+
+    /**
+     * @param algorithms the extensions of the checksums to compute
+     * @throws IllegalArgumentException if an algorithm is not known
+     */
+    Checksums(Collection<String> algorithms) {
+        for (String algorithm : algorithms) {
+            try {
+                digests.put(algorithm, MessageDigest.getInstance(toJavaName(algorithm)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm, e);
+            }
+        }
+    }
+
+    /**
+     * @param algorithm the extension of a checksum file, such as <code>sha256</code>
+     * @return the name of the algorithm in the Java security API, such as <code>SHA-256</code>
+     */
+    static String toJavaName(String algorithm) {
+        switch (algorithm.toLowerCase()) {
+            case RepositoryCopier.MD5:
+                return "MD5";
+            case RepositoryCopier.SHA1:
+                return "SHA-1";
+            case RepositoryCopier.SHA256:
+                return "SHA-256";
+            case RepositoryCopier.SHA512:
+                return "SHA-512";
+            default:
+                return algorithm;
+        }
+    }
+
+    void update(byte[] b, int off, int len) {
+        for (MessageDigest digest : digests.values()) {
+            digest.update(b, off, len);
+        }
+
+        count += len;
+    }
+
+    /**
+     * @return the number of bytes passed to this instance since it was last reset
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Discards everything passed to this instance so far.
+     */
+    void reset() {
+        for (MessageDigest digest : digests.values()) {
+            digest.reset();
+        }
+
+        count = 0;
+    }
+
+    /**
+     * Completes the checksums and resets this instance.
+     *
+     * @return the checksums in lower case hex, keyed by algorithm, in the order the algorithms were given
+     */
+    Map<String, String> digest() {
+        Map<String, String> checksums = new LinkedHashMap<>();
+
+        for (Map.Entry<String, MessageDigest> e : digests.entrySet()) {
+            checksums.put(e.getKey(), encode(e.getValue().digest()));
+        }
+
+        count = 0;
+
+        return checksums;
+    }
+
+    /**
+     * Reads a file and computes its checksums.
+     *
+     * @return the checksums, as returned by {@link #digest()}
+     */
+    Map<String, String> digest(File file) throws IOException {
+        reset();
+
+        // CHECKSTYLE_OFF: MagicNumber
+        byte[] buf = new byte[64 * 1024];
+        // CHECKSTYLE_ON: MagicNumber
+
+        try (InputStream is = new FileInputStream(file)) {
+            int i;
+
+            while ((i = is.read(buf)) >= 0) {
+                update(buf, 0, i);
+            }
+        }
+
+        return digest();
+    }
+
+    /**
+     * @param out the stream to write to
+     * @return a stream that updates this instance with everything written to <code>out</code>
+     */
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+
+                single[0] = (byte) b;
+
+                update(single, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+
+                update(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @param in the stream to read from
+     * @return a stream that updates this instance with everything read from <code>in</code>
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+
+                if (b >= 0) {
+                    single[0] = (byte) b;
+
+                    update(single, 0, 1);
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int i = in.read(b, off, len);
+
+                if (i > 0) {
+                    update(b, off, i);
+                }
+
+                return i;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                throw new IOException("Skipping would leave bytes out of the checksums");
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a listener that updates this instance with the bytes of every transfer it is notified of
+     */
+    TransferListener listener() {
+        return new TransferListener() {
+            public void transferInitiated(TransferEvent transferEvent) {}
+
+            public void transferStarted(TransferEvent transferEvent) {}
+
+            public void transferProgress(TransferEvent transferEvent, byte[] buffer, int length) {
+                update(buffer, 0, length);
+            }
+
+            public void transferCompleted(TransferEvent transferEvent) {}
+
+            public void transferError(TransferEvent transferEvent) {}
+
+            public void debug(String message) {}
+        };
+    }
+
+    /**
+     * @param binaryData a digest
+     * @return the digest in lower case hex
+     */
+    static String encode(byte[] binaryData) {
+        char[] chars = new char[binaryData.length * 2];
+
+        for (int i = 0; i < binaryData.length; i++) {
+            // CHECKSTYLE_OFF: MagicNumber
+            chars[i * 2] = HEX[(binaryData[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[binaryData[i] & 0xf];
+            // CHECKSTYLE_ON: MagicNumber
+        }
+
+        return new String(chars);
+    }
+}
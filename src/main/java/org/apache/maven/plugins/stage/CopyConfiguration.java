@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tuning options for a {@link RepositoryCopier} run. The defaults are used by
+ * {@link RepositoryCopier#copy(org.apache.maven.wagon.repository.Repository,
+ * org.apache.maven.wagon.repository.Repository, String)}.
+ */
+public class CopyConfiguration {
+    private int scanThreads = 1;
+
+    private int downloadThreads = 1;
+
+    private int metadataThreads = 1;
+
+    private int compressionThreads = 1;
+
+    private int shards = 1;
+
+    private String archiveFormat = "zip";
+
+    private int uploadThreads = 1;
+
+    private boolean streaming;
+
+    private boolean resume;
+
+    private boolean delta;
+
+    private boolean allVersions;
+
+    private List<String> includes = Collections.emptyList();
+
+    private List<String> excludes = Collections.emptyList();
+
+    private File reportFile;
+
+    private int pathMemoryLimit;
+
+    private boolean remoteListing;
+
+    private String listingIndex;
+
+    private File metadataCache;
+
+    private int connectionIdleTimeout = 60;
+
+    private int retries = 3;
+
+    private long retryDelay = 1000;
+
+    private boolean adaptiveConcurrency = true;
+
+    private List<String> checksumAlgorithms = Arrays.asList(RepositoryCopier.MD5, RepositoryCopier.SHA1);
+
+    private boolean verify = true;
+
+    private File plan;
+
+    private int planPart;
+
+    private int planParts;
+
+    /**
+     * @return the number of concurrent connections used to list the directories of the source repository
+     */
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    /**
+     * @return the number of concurrent connections used to download files from the source repository
+     */
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = downloadThreads;
+    }
+
+    /**
+     * @return the number of concurrent connections used to download and merge the metadata of the target
+     *         repository
+     */
+    public int getMetadataThreads() {
+        return metadataThreads;
+    }
+
+    public void setMetadataThreads(int metadataThreads) {
+        this.metadataThreads = metadataThreads;
+    }
+
+    /**
+     * @return the number of threads compressing the staging archive. Files that are compressed already, such as
+     *         jars, are stored without compression either way.
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * @return the number of zip files the staged files are split over, balanced by size. Each is uploaded and
+     *         unpacked over its own connection to the target repository, at the same time as the others.
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @return the format of the archives deployed to the target repository: <code>zip</code>, or <code>tar</code>
+     *         or <code>tgz</code>, which are unpacked on the target machine while they are uploaded
+     */
+    public String getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    public void setArchiveFormat(String archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    /**
+     * @return the number of concurrent connections used to upload files to a target repository whose Wagon cannot
+     *         execute commands. Such targets get the files one by one, with the metadata last, instead of a zip file.
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    /**
+     * @return whether downloaded files are written straight into the staging archive instead of a work
+     *         directory. Only the repository metadata is kept on disk, as it needs to be merged.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @return whether to keep the work directory of a previous run and only download the files that are
+     *         missing or have changed since
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @return whether to leave out of the archive the files that the target repository already holds with the
+     *         same SHA-1 checksum
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @return whether to copy all versions found in the source repository, rather than only the version being
+     *         staged and the metadata of its artifacts
+     */
+    public boolean isAllVersions() {
+        return allVersions;
+    }
+
+    public void setAllVersions(boolean allVersions) {
+        this.allVersions = allVersions;
+    }
+
+    /**
+     * @return the <code>groupId:artifactId</code> patterns of the artifacts to copy, where <code>*</code> matches
+     *         any characters and a missing artifactId matches the whole group. All artifacts are copied if empty.
+     */
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+
+    /**
+     * @return the <code>groupId:artifactId</code> patterns of the artifacts not to copy. The directories of
+     *         excluded artifacts are not even listed.
+     */
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+
+    /**
+     * @return the JSON file to write the timings and transfer statistics of the run to, or <code>null</code> to
+     *         write <code>staging-plugin-&lt;version&gt;-report.json</code> to the temporary directory
+     */
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * @return the size in megabytes of the paths of the staged files to keep in memory before they are written to
+     *         the temporary directory, <code>0</code> to keep them all in memory
+     */
+    public int getPathMemoryLimit() {
+        return pathMemoryLimit;
+    }
+
+    public void setPathMemoryLimit(int pathMemoryLimit) {
+        this.pathMemoryLimit = pathMemoryLimit;
+    }
+
+    /**
+     * @return whether to list the source repository with a single <code>find</code> when its Wagon can execute
+     *         commands, instead of listing its directories one by one
+     */
+    public boolean isRemoteListing() {
+        return remoteListing;
+    }
+
+    public void setRemoteListing(boolean remoteListing) {
+        this.remoteListing = remoteListing;
+    }
+
+    /**
+     * @return the path of an index file listing all files of the source repository, relative to its root, or
+     *         <code>null</code> if the repository provides none
+     */
+    public String getListingIndex() {
+        return listingIndex;
+    }
+
+    public void setListingIndex(String listingIndex) {
+        this.listingIndex = listingIndex;
+    }
+
+    /**
+     * @return the directory to keep the metadata of target repositories in between runs, or <code>null</code> to
+     *         download all of it on every run
+     */
+    public File getMetadataCache() {
+        return metadataCache;
+    }
+
+    public void setMetadataCache(File metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * @return the number of seconds to keep unused connections open for later phases and later copies,
+     *         <code>0</code> to disconnect them when they are no longer used
+     */
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    /**
+     * @return the number of times a failed transfer is tried again, each time over a new connection. Only transfer
+     *         failures are tried again, not missing files or refused authorizations.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @return the number of milliseconds to wait before trying a failed transfer again the first time. The delay
+     *         doubles with every further attempt.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @return whether to run fewer transfers at once than there are threads while a repository is slow to respond
+     *         or fails transfers, recovering one transfer at a time as it copes again
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    /**
+     * @return the checksums to generate, named by the extension of their files. The checksums of merged
+     *         metadata are regenerated for all of them, and staged files get the checksum files that are
+     *         missing for algorithms other than {@link RepositoryCopier#MD5} and {@link RepositoryCopier#SHA1}.
+     */
+    public List<String> getChecksumAlgorithms() {
+        return checksumAlgorithms;
+    }
+
+    public void setChecksumAlgorithms(List<String> checksumAlgorithms) {
+        this.checksumAlgorithms = checksumAlgorithms;
+    }
+
+    /**
+     * @return whether to check the files unpacked on the target machine against the checksums computed while
+     *         archiving them, before they are moved into place. The checksums are computed on the target machine,
+     *         so nothing is downloaded again. Files published one by one to a target that cannot execute commands
+     *         are not verified.
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * @return the plan file: written by {@link RepositoryCopier#plan(org.apache.maven.wagon.repository.Repository,
+     *         String, CopyConfiguration)}, and copied from instead of listing the source repository when set for a
+     *         copy
+     */
+    public File getPlan() {
+        return plan;
+    }
+
+    public void setPlan(File plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * @return the part of the plan to copy, from <code>1</code> to {@link #getPlanParts()}
+     */
+    public int getPlanPart() {
+        return planPart;
+    }
+
+    public void setPlanPart(int planPart) {
+        this.planPart = planPart;
+    }
+
+    /**
+     * @return the number of parts the plan is split into, or <code>0</code> to copy the whole plan. A part leaves
+     *         its rename script on the target machine, for {@link RepositoryCopier#commit(java.util.List, String,
+     *         CopyConfiguration)} to run once all parts are unpacked.
+     */
+    public int getPlanParts() {
+        return planParts;
+    }
+
+    public void setPlanParts(int planParts) {
+        this.planParts = planParts;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.apache.maven.plugins.stage.RepositoryCopier.MAVEN_METADATA;
+
+/**
+ * The files of a staged version, listed once so that the copy can be split into parts that run on several
+ * machines at the same time.
+ * <p>
+ * A plan is a text file with one line per file: the size, the SHA-1 checksum and the path, separated by tabs as in
+ * the {@link TransferManifest}. A size of <code>-1</code> or a checksum of <code>-</code> is not known.
+ * </p>
+ * <p>
+ * The files are shared out by artifact, the directory holding the version directory, so that the metadata of an
+ * artifact is merged and renamed by the same part as its version. The metadata of a group, such as the plugin
+ * prefixes of a plugin group, belongs to no artifact and always goes to the first part. The biggest artifacts are
+ * handed out first, each to the part with the fewest bytes so far, so that the parts take about as long. Every part
+ * computes the same split from the same plan.
+ * </p>
+ */
+class CopyPlan {
+    static final class Entry {
+        private final long size;
+
+        private final String sha1;
+
+        Entry(long size, String sha1) {
+            this.size = size;
+            this.sha1 = sha1;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getSha1() {
+            return sha1;
+        }
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Adds a file to the plan. May be called from any thread.
+     *
+     * @param path the path of the file, relative to the repository root
+     * @param size the size of the file, or <code>-1</code> if unknown
+     * @param sha1 the SHA-1 checksum of the file, or <code>null</code> if unknown
+     */
+    synchronized void add(String path, long size, String sha1) {
+        entries.put(path, new Entry(size, sha1 != null ? sha1 : "-"));
+    }
+
+    /**
+     * @return the planned file, or <code>null</code> if the file is not in the plan
+     */
+    synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks a downloaded file against the plan: its size, and for a <code>.sha1</code> file the checksum it holds,
+     * which changes when the file it is the checksum of is staged again.
+     *
+     * @param path the path of the file, relative to the repository root
+     * @param file the downloaded file
+     * @throws IOException if the file is not the one that was planned, as the source repository changed since
+     */
+    void check(String path, File file) throws IOException {
+        Entry entry = get(path);
+
+        if (entry != null && entry.size >= 0 && entry.size != file.length()) {
+            throw new IOException(path + " has changed in the source repository since the plan was made");
+        }
+
+        String extension = "." + RepositoryCopier.SHA1;
+
+        Entry planned = path.endsWith(extension) ? get(path.substring(0, path.length() - extension.length())) : null;
+
+        if (planned != null && !"-".equals(planned.sha1)) {
+            // The checksum may be followed by the file name
+            String sha1 = FileUtils.readFileToString(file, StandardCharsets.US_ASCII).trim().split("\\s+")[0];
+
+            if (!planned.sha1.equalsIgnoreCase(sha1)) {
+                throw new IOException(path + " has changed in the source repository since the plan was made");
+            }
+        }
+    }
+
+    /**
+     * Writes the plan, sorted by path.
+     */
+    synchronized void write(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+
+                // We use an explicit unix '\n' line-ending here so that the plan can be moved between machines.
+                writer.write(entry.size + "\t" + entry.sha1 + "\t" + e.getKey() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Reads a plan.
+     *
+     * @throws IOException if the plan cannot be read or a line of it is not understood
+     */
+    static CopyPlan read(File file) throws IOException {
+        CopyPlan plan = new CopyPlan();
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+
+                if (fields.length != 3) {
+                    throw new IOException("Malformed line in the plan " + file + ": " + line);
+                }
+
+                try {
+                    plan.add(fields[2], Long.parseLong(fields[0]), fields[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line in the plan " + file + ": " + line, e);
+                }
+            }
+        }
+
+        return plan;
+    }
+
+    /**
+     * Splits the plan.
+     *
+     * @param part the part to return, from <code>1</code> to <code>parts</code>
+     * @param parts the number of parts to split the plan into
+     * @param version the version being staged, whose directories go with their artifact
+     * @return the paths of the files of the part, sorted
+     */
+    synchronized List<String> paths(int part, int parts, String version) {
+        Set<String> versioned = new TreeSet<>();
+
+        for (String path : entries.keySet()) {
+            if (isInVersion(path, version)) {
+                versioned.add(artifact(path, version));
+            }
+        }
+
+        Map<String, List<String>> artifacts = new TreeMap<>();
+        Map<String, Long> weights = new TreeMap<>();
+
+        long[] loads = new long[parts];
+        List<String> paths = new ArrayList<>();
+
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            String artifact = artifact(e.getKey(), version);
+
+            if (!versioned.contains(artifact) && isGroupMetadata(e.getKey())) {
+                loads[0] += Math.max(e.getValue().size, 0) + 1;
+
+                if (part == 1) {
+                    paths.add(e.getKey());
+                }
+
+                continue;
+            }
+
+            artifacts.computeIfAbsent(artifact, a -> new ArrayList<>()).add(e.getKey());
+
+            // Files of unknown size still count, so that a plan without sizes is split by the number of files
+            weights.merge(artifact, Math.max(e.getValue().size, 0) + 1, Long::sum);
+        }
+
+        List<String> order = new ArrayList<>(artifacts.keySet());
+        order.sort(Comparator.comparing(weights::get).reversed());
+
+        for (String artifact : order) {
+            int lightest = 0;
+
+            for (int i = 1; i < parts; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+
+            loads[lightest] += weights.get(artifact);
+
+            if (lightest == part - 1) {
+                paths.addAll(artifacts.get(artifact));
+            }
+        }
+
+        paths.sort(null);
+
+        return paths;
+    }
+
+    /**
+     * @return a listing strategy handing out the files of a part of the plan, in place of listing the source
+     *         repository
+     * @see #paths(int, int, String)
+     */
+    ListingStrategy listing(int part, int parts, String version) {
+        List<String> paths = paths(part, parts, version);
+
+        return (wagon, basePath, consumer) -> {
+            paths.forEach(consumer);
+
+            return true;
+        };
+    }
+
+    /**
+     * @return whether a file is in a version directory, and so belongs to the artifact above it
+     */
+    private static boolean isInVersion(String path, String version) {
+        String directory = path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+
+        return directory.equals(version) || directory.endsWith("/" + version);
+    }
+
+    /**
+     * @return whether a file is metadata, or a checksum or signature of it, outside of a version directory
+     */
+    private static boolean isGroupMetadata(String path) {
+        return path.substring(path.lastIndexOf('/') + 1).startsWith(MAVEN_METADATA);
+    }
+
+    /**
+     * @return the directory of the artifact a file belongs to: the directory above the version directory, or else
+     *         the directory holding the file
+     */
+    private static String artifact(String path, String version) {
+        int idx = path.lastIndexOf('/');
+
+        String directory = idx < 0 ? "" : path.substring(0, idx);
+
+        if (directory.equals(version)) {
+            return "";
+        }
+
+        if (directory.endsWith("/" + version)) {
+            return directory.substring(0, directory.length() - version.length() - 1);
+        }
+
+        return directory;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Collects timings and transfer statistics for the phases of a copy, and writes them to a JSON report.
+ * <p>
+ * Every {@link Phase} is a {@link TransferListener} that can be added to the Wagons used in that phase. It counts
+ * requests and bytes, measures the latency of every file and logs a progress line at most every few seconds,
+ * instead of a line per file.
+ * </p>
+ */
+class CopyReport {
+    /**
+     * The minimum time between two progress lines of a phase.
+     */
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final Map<String, Phase> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+    private final Instant started = Instant.now();
+
+    private final long start = System.nanoTime();
+
+    private final Logger logger;
+
+    CopyReport(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Adds a property, such as the version being staged, to the report.
+     */
+    void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    /**
+     * @param name the name of the phase
+     * @return the phase, created on first use
+     */
+    Phase phase(String name) {
+        return phases.computeIfAbsent(name, n -> new Phase(n, logger));
+    }
+
+    /**
+     * Writes the report.
+     *
+     * @param file the JSON file to write
+     */
+    void write(File file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            json.append("  ").append(quote(property.getKey())).append(": ");
+            json.append(quote(property.getValue())).append(",\n");
+        }
+
+        json.append("  \"started\": ").append(quote(started.toString())).append(",\n");
+        json.append("  \"durationMillis\": ").append(millis(System.nanoTime() - start)).append(",\n");
+        json.append("  \"phases\": {");
+
+        List<Phase> list;
+
+        synchronized (phases) {
+            list = new ArrayList<>(phases.values());
+        }
+
+        for (int i = 0; i < list.size(); i++) {
+            json.append(i == 0 ? "\n" : ",\n");
+
+            list.get(i).append(json);
+        }
+
+        json.append("\n  }\n}\n");
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The statistics of one phase. Safe for concurrent use.
+     */
+    static final class Phase implements TransferListener {
+        private final String name;
+
+        private final Logger logger;
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        private final AtomicLong items = new AtomicLong();
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong completed = new AtomicLong();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicLong retries = new AtomicLong();
+
+        private final AtomicLong firstTransfer = new AtomicLong();
+
+        private final AtomicLong lastTransfer = new AtomicLong();
+
+        private final AtomicLong lastProgress = new AtomicLong();
+
+        private final List<Long> latencies = new ArrayList<>();
+
+        /**
+         * A Wagon transfers one file at a time, and every worker uses its own Wagon
+         */
+        private final ThreadLocal<Long> transferStart = new ThreadLocal<>();
+
+        Phase(String name, Logger logger) {
+            this.name = name;
+            this.logger = logger;
+        }
+
+        /**
+         * @return the start time to pass to {@link #stop(long)}
+         */
+        long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Adds the time since <code>start</code> to the duration of the phase. A phase may be timed several
+         * times, also concurrently, in which case the durations add up.
+         */
+        void stop(long start) {
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+
+        /**
+         * Counts an item that was processed without a transfer, such as a file found by the scan.
+         */
+        void count() {
+            items.incrementAndGet();
+        }
+
+        /**
+         * Counts a transfer that is tried again.
+         */
+        void retried() {
+            retries.incrementAndGet();
+        }
+
+        public void transferInitiated(TransferEvent transferEvent) {}
+
+        public void transferStarted(TransferEvent transferEvent) {
+            long now = System.nanoTime();
+
+            firstTransfer.compareAndSet(0, now);
+
+            requests.incrementAndGet();
+
+            transferStart.set(now);
+        }
+
+        public void transferProgress(TransferEvent transferEvent, byte[] buffer, int length) {
+            bytes.addAndGet(length);
+        }
+
+        public void transferCompleted(TransferEvent transferEvent) {
+            completed.incrementAndGet();
+
+            lastTransfer.accumulateAndGet(System.nanoTime(), Math::max);
+
+            Long started = transferStart.get();
+
+            if (started != null) {
+                transferStart.remove();
+
+                synchronized (latencies) {
+                    latencies.add(System.nanoTime() - started);
+                }
+            }
+
+            progress();
+        }
+
+        public void transferError(TransferEvent transferEvent) {
+            failures.incrementAndGet();
+
+            transferStart.remove();
+        }
+
+        public void debug(String message) {}
+
+        private void progress() {
+            long now = System.nanoTime();
+            long last = lastProgress.get();
+
+            if (now - last >= PROGRESS_INTERVAL && lastProgress.compareAndSet(last, now)) {
+                logger.info(name + ": " + completed.get() + " file(s), " + formatBytes(bytes.get()) + " at "
+                        + formatBytes(bytesPerSecond(now)) + "/s");
+            }
+        }
+
+        private long bytesPerSecond(long now) {
+            long elapsed = now - firstTransfer.get();
+
+            return elapsed > 0 ? bytes.get() * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+        }
+
+        private void append(StringBuilder json) {
+            json.append("    ").append(quote(name)).append(": {");
+            json.append("\"millis\": ").append(millis(nanos.get()));
+            json.append(", \"items\": ").append(items.get());
+            json.append(", \"requests\": ").append(requests.get());
+            json.append(", \"completed\": ").append(completed.get());
+            json.append(", \"failures\": ").append(failures.get());
+            json.append(", \"retries\": ").append(retries.get());
+            json.append(", \"bytes\": ").append(bytes.get());
+            json.append(", \"bytesPerSecond\": ").append(completed.get() > 0 ? bytesPerSecond(lastTransfer.get()) : 0);
+
+            long[] sorted;
+
+            synchronized (latencies) {
+                sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+
+            if (sorted.length > 0) {
+                json.append(", \"latencyMillis\": {");
+                json.append("\"p50\": ").append(millis(percentile(sorted, 50)));
+                json.append(", \"p90\": ").append(millis(percentile(sorted, 90)));
+                json.append(", \"p99\": ").append(millis(percentile(sorted, 99)));
+                json.append(", \"max\": ").append(millis(sorted[sorted.length - 1]));
+                json.append("}");
+            }
+
+            json.append("}");
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            // CHECKSTYLE_OFF: MagicNumber
+            int idx = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            // CHECKSTYLE_ON: MagicNumber
+
+            return sorted[Math.max(0, idx)];
+        }
+
+        private static String formatBytes(long bytes) {
+            // CHECKSTYLE_OFF: MagicNumber
+            if (bytes < 1024) {
+                return bytes + " B";
+            } else if (bytes < 1024 * 1024) {
+                return String.format("%.1f KB", bytes / 1024.0);
+            } else if (bytes < 1024L * 1024 * 1024) {
+                return String.format("%.1f MB", bytes / (1024.0 * 1024));
+            }
+
+            return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+            // CHECKSTYLE_ON: MagicNumber
+        }
+    }
+}
@@ -18,7 +18,10 @@
  */
 package org.apache.maven.plugins.stage;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -52,6 +55,14 @@ public class CopyRepositoryMojo extends AbstractMojo {
     @Parameter(property = "target")
     private String target;
 
+    /**
+     * Further target repositories to publish the same version to, such as mirrors, as
+     * <code>id::url</code>, or just the URL to use the <code>targetRepositoryId</code>. The source repository is
+     * then downloaded and archived only once, and all targets are published to at the same time.
+     */
+    @Parameter(property = "targets")
+    private List<String> targets;
+
     /**
      * The id of the source repository, required if you need the configuration from the user settings.
      */
@@ -65,15 +76,225 @@ public class CopyRepositoryMojo extends AbstractMojo {
     private String targetRepositoryId;
 
     /**
-     * The version of the artifact that is to be copied.
-     * <p>
-     * <b>Note:</b> This is currently only used for naming temporary files.
-     * <i>All</i> versions of the artifacts will be copied.
-     * </p>
+     * The version of the artifact that is to be copied. Only the directories of this version are copied, along
+     * with the metadata of their artifacts, unless <code>allVersions</code> is set.
      */
     @Parameter(property = "version", required = true)
     private String version;
 
+    /**
+     * Whether to copy all versions found in the source repository rather than only <code>version</code>.
+     */
+    @Parameter(property = "allVersions", defaultValue = "false")
+    private boolean allVersions;
+
+    /**
+     * The artifacts to copy, as <code>groupId:artifactId</code> patterns where <code>*</code> matches any
+     * characters. A pattern without an artifactId matches all artifacts of the group. All artifacts are copied if
+     * none are given.
+     */
+    @Parameter(property = "includes")
+    private List<String> includes;
+
+    /**
+     * The artifacts not to copy, as <code>groupId:artifactId</code> patterns like <code>includes</code>. The
+     * directories of excluded artifacts are not even listed in the source repository.
+     */
+    @Parameter(property = "excludes")
+    private List<String> excludes;
+
+    /**
+     * The JSON file to write the timings and transfer statistics of every phase of the copy to. Defaults to
+     * <code>staging-plugin-&lt;version&gt;-report.json</code> in the temporary directory.
+     */
+    @Parameter(property = "reportFile")
+    private File reportFile;
+
+    /**
+     * The size in megabytes of the paths of the staged files to keep in memory. Beyond it they are written to the
+     * temporary directory, which keeps the heap small when staging a very large repository. <code>0</code> keeps
+     * them all in memory, which is fine for all but mirror-sized repositories: the paths are stored prefix
+     * compressed, taking some tens of megabytes for a million files. This covers the paths found in the source
+     * repository, the entries of the staging archive and the rename commands. Resuming and skipping the files
+     * present in the target still keep a manifest entry per file in memory, and so does verifying the unpacked
+     * files.
+     */
+    @Parameter(property = "pathMemoryLimit", defaultValue = "0")
+    private int pathMemoryLimit;
+
+    /**
+     * Whether to list the source repository with a single <code>find</code> on the machine holding it, when its
+     * Wagon can execute commands. If the command fails the directories are listed one by one. The whole output of
+     * the command is held in memory: when not scoped to a version, it lists every file of the repository.
+     */
+    @Parameter(property = "remoteListing", defaultValue = "false")
+    private boolean remoteListing;
+
+    /**
+     * The path of an index file that lists all files of the source repository, relative to its root, one per line,
+     * optionally preceded by their size and modification time as printed by
+     * <code>find . -type f -printf '%s %T@ %P\n'</code>. When the source repository has it, it is downloaded
+     * instead of listing the repository. The index must be up to date, as files it does not list are not copied.
+     */
+    @Parameter(property = "listingIndex")
+    private String listingIndex;
+
+    /**
+     * The directory to keep the metadata of the target repository in between runs. A metadata file whose
+     * <code>.sha1</code> on the target matches a cached file is not downloaded again. Leave empty to download
+     * all metadata on every run.
+     */
+    @Parameter(property = "metadataCache", defaultValue = "${user.home}/.m2/stage-plugin/metadata")
+    private File metadataCache;
+
+    /**
+     * The number of seconds to keep unused connections to the repositories open. Later phases of the copy, and
+     * later copies in the same build, reuse them instead of connecting again. Connections unused for longer are
+     * dropped, and all of them are closed at the end of the build. <code>0</code> disconnects them as soon as they
+     * are no longer used.
+     */
+    @Parameter(property = "connectionIdleTimeout", defaultValue = "60")
+    private int connectionIdleTimeout;
+
+    /**
+     * The number of times a failed transfer is tried again, each time over a new connection and after a delay
+     * that doubles with every attempt. Missing files and refused authorizations are not tried again.
+     */
+    @Parameter(property = "retries", defaultValue = "3")
+    private int retries;
+
+    /**
+     * The number of milliseconds to wait before trying a failed transfer again the first time.
+     */
+    @Parameter(property = "retryDelay", defaultValue = "1000")
+    private long retryDelay;
+
+    /**
+     * Whether to run fewer transfers at once than there are threads while a repository is slow to respond or fails
+     * transfers, as a repository manager that rate limits its clients does. The number of transfers is halved then,
+     * and raised again one at a time as transfers succeed.
+     */
+    @Parameter(property = "adaptiveConcurrency", defaultValue = "true")
+    private boolean adaptiveConcurrency;
+
+    /**
+     * The number of concurrent connections used to list the directories of the source repository.
+     */
+    @Parameter(property = "scanThreads", defaultValue = "1")
+    private int scanThreads;
+
+    /**
+     * The number of concurrent connections used to download files from the source repository.
+     */
+    @Parameter(property = "downloadThreads", defaultValue = "1")
+    private int downloadThreads;
+
+    /**
+     * The number of concurrent connections used to download and merge the metadata of the target repository.
+     */
+    @Parameter(property = "metadataThreads", defaultValue = "1")
+    private int metadataThreads;
+
+    /**
+     * The number of threads compressing the zip file deployed to the target repository.
+     */
+    @Parameter(property = "compressionThreads", defaultValue = "1")
+    private int compressionThreads;
+
+    /**
+     * The number of zip files to split the staged files over. They are uploaded and unpacked on the target machine
+     * concurrently, each over its own connection.
+     */
+    @Parameter(property = "shards", defaultValue = "1")
+    private int shards;
+
+    /**
+     * The format of the archives deployed to the target repository: <code>zip</code>, or <code>tar</code> or
+     * <code>tgz</code>. A tar file is streamed into <code>tar</code> on the target machine and unpacked as it
+     * arrives, instead of being stored there and unpacked once uploaded. A tar file is compressed on a single
+     * thread, if at all.
+     */
+    @Parameter(property = "archiveFormat", defaultValue = "zip")
+    private String archiveFormat;
+
+    /**
+     * The number of concurrent connections used to upload files to a target repository that cannot execute
+     * commands, such as a <code>file:</code> or <code>http:</code> repository. Such targets get the files one by
+     * one rather than a zip file.
+     */
+    @Parameter(property = "uploadThreads", defaultValue = "1")
+    private int uploadThreads;
+
+    /**
+     * Whether to stream the downloaded files straight into the zip file deployed to the target repository.
+     * This avoids a temporary copy of the whole source repository, only the metadata is kept on disk for
+     * merging.
+     */
+    @Parameter(property = "streaming", defaultValue = "false")
+    private boolean streaming;
+
+    /**
+     * Whether to resume a previous run for the same version. Files that were downloaded completely by that
+     * run and still match the checksum in the source repository are not downloaded again. Cannot be combined
+     * with <code>streaming</code>.
+     */
+    @Parameter(property = "resume", defaultValue = "false")
+    private boolean resume;
+
+    /**
+     * Whether to only deploy the files that are missing or different in the target repository. The checksums
+     * of the files in the target repository are computed on the target machine, so this is mostly useful when
+     * re-staging after a partial deployment. Cannot be combined with <code>streaming</code>.
+     */
+    @Parameter(property = "delta", defaultValue = "false")
+    private boolean delta;
+
+    /**
+     * The checksums to generate: <code>md5</code>, <code>sha1</code>, <code>sha256</code> and/or
+     * <code>sha512</code>. They are regenerated for merged metadata, and staged files that come without a
+     * <code>sha256</code> or <code>sha512</code> checksum file get one when that algorithm is listed.
+     */
+    @Parameter(property = "checksumAlgorithms", defaultValue = "md5,sha1")
+    private List<String> checksumAlgorithms;
+
+    /**
+     * Whether to check the files unpacked on the target machine against the checksums computed while archiving
+     * them, before they are moved into place. The checksums are computed on the target machine with
+     * <code>sha1sum</code>, <code>shasum</code> or <code>sha1</code>, so nothing is downloaded again. A target
+     * machine with none of them is not verified, with a warning.
+     */
+    @Parameter(property = "verify", defaultValue = "true")
+    private boolean verify;
+
+    /**
+     * What to do: <code>copy</code> the staged version, write the <code>plan</code> of a copy to be split over
+     * several machines, or <code>commit</code> a plan that was copied in parts. A plan is copied in parts with
+     * <code>copy</code>, giving every machine the same plan and its own <code>planPart</code>.
+     */
+    @Parameter(property = "step", defaultValue = "copy")
+    private String step;
+
+    /**
+     * The plan file, written by the <code>plan</code> step, and copied from instead of listing the source
+     * repository when given to the <code>copy</code> step.
+     */
+    @Parameter(property = "plan")
+    private File plan;
+
+    /**
+     * The part of the plan to copy, from 1 to <code>planParts</code>. The files are split by artifact, so that the
+     * metadata of an artifact is merged by the same part as its version.
+     */
+    @Parameter(property = "planPart", defaultValue = "0")
+    private int planPart;
+
+    /**
+     * The number of parts the plan is split into. A part is unpacked on the target machine without being moved
+     * into place, which the <code>commit</code> step does for all parts once they are unpacked.
+     */
+    @Parameter(property = "planParts", defaultValue = "0")
+    private int planParts;
+
     /**
      * The repository copier to use.
      */
@@ -83,12 +304,89 @@ public class CopyRepositoryMojo extends AbstractMojo {
     public void execute() throws MojoExecutionException {
         try {
             Repository sourceRepository = new Repository(sourceRepositoryId, source);
-            Repository targetRepository = new Repository(targetRepositoryId, target);
-            copier.copy(sourceRepository, targetRepository, version);
+            List<Repository> targetRepositories = new ArrayList<>();
+
+            if (target != null) {
+                targetRepositories.add(new Repository(targetRepositoryId, target));
+            }
+
+            if (targets != null) {
+                for (String t : targets) {
+                    int idx = t.indexOf("::");
+
+                    targetRepositories.add(
+                            idx < 0
+                                    ? new Repository(targetRepositoryId, t.trim())
+                                    : new Repository(t.substring(0, idx).trim(), t.substring(idx + 2).trim()));
+                }
+            }
+
+            if (targetRepositories.isEmpty() && !"plan".equals(step)) {
+                throw new MojoExecutionException("No target repository is given.");
+            }
+
+            CopyConfiguration configuration = new CopyConfiguration();
+            configuration.setScanThreads(scanThreads);
+            configuration.setDownloadThreads(downloadThreads);
+            configuration.setMetadataThreads(metadataThreads);
+            configuration.setCompressionThreads(compressionThreads);
+            configuration.setShards(shards);
+            configuration.setArchiveFormat(archiveFormat);
+            configuration.setUploadThreads(uploadThreads);
+            configuration.setStreaming(streaming);
+            configuration.setResume(resume);
+            configuration.setDelta(delta);
+            configuration.setChecksumAlgorithms(checksumAlgorithms);
+            configuration.setAllVersions(allVersions);
+            configuration.setReportFile(reportFile);
+            configuration.setPathMemoryLimit(pathMemoryLimit);
+            configuration.setRemoteListing(remoteListing);
+            configuration.setListingIndex(listingIndex);
+            configuration.setMetadataCache(metadataCache);
+            configuration.setConnectionIdleTimeout(connectionIdleTimeout);
+            configuration.setRetries(retries);
+            configuration.setRetryDelay(retryDelay);
+            configuration.setAdaptiveConcurrency(adaptiveConcurrency);
+            configuration.setVerify(verify);
+            configuration.setPlan(plan);
+            configuration.setPlanPart(planPart);
+            configuration.setPlanParts(planParts);
+
+            if (includes != null) {
+                configuration.setIncludes(includes);
+            }
+
+            if (excludes != null) {
+                configuration.setExcludes(excludes);
+            }
+
+            if ("plan".equals(step)) {
+                copier.plan(sourceRepository, version, configuration);
+            } else if ("commit".equals(step)) {
+                copier.commit(targetRepositories, version, configuration);
+            } else if ("copy".equals(step)) {
+                copier.copy(sourceRepository, targetRepositories, version, configuration);
+            } else {
+                throw new MojoExecutionException("Unknown step: " + step);
+            }
         } catch (IOException e) {
-            throw new MojoExecutionException("Error copying repository from " + source + " to " + target, e);
+            throw new MojoExecutionException("Error copying repository from " + source + " to " + targetNames(), e);
         } catch (WagonException e) {
-            throw new MojoExecutionException("Error copying repository from " + source + " to " + target, e);
+            throw new MojoExecutionException("Error copying repository from " + source + " to " + targetNames(), e);
         }
     }
+
+    private String targetNames() {
+        List<String> names = new ArrayList<>();
+
+        if (target != null) {
+            names.add(target);
+        }
+
+        if (targets != null) {
+            names.addAll(targets);
+        }
+
+        return String.join(", ", names);
+    }
 }
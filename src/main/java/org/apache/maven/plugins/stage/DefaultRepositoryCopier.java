@@ -23,442 +23,1814 @@ import javax.inject.Named;
 import javax.inject.Singleton;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.Reader;
-import java.io.Writer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.maven.artifact.manager.WagonManager;
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.artifact.repository.metadata.Metadata;
-import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
-import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
-import org.apache.maven.wagon.CommandExecutionException;
 import org.apache.maven.wagon.CommandExecutor;
-import org.apache.maven.wagon.ConnectionException;
-import org.apache.maven.wagon.ResourceDoesNotExistException;
 import org.apache.maven.wagon.TransferFailedException;
-import org.apache.maven.wagon.UnsupportedProtocolException;
 import org.apache.maven.wagon.Wagon;
 import org.apache.maven.wagon.WagonException;
-import org.apache.maven.wagon.authentication.AuthenticationException;
-import org.apache.maven.wagon.authentication.AuthenticationInfo;
-import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.events.TransferListener;
 import org.apache.maven.wagon.repository.Repository;
 import org.codehaus.plexus.logging.LogEnabled;
 import org.codehaus.plexus.logging.Logger;
-import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
 
 /**
  * @author Jason van Zyl
  */
 @Singleton
 @Named
-public class DefaultRepositoryCopier implements LogEnabled, RepositoryCopier {
-    private MetadataXpp3Reader reader = new MetadataXpp3Reader();
+public class DefaultRepositoryCopier implements LogEnabled, Disposable, RepositoryCopier {
+    @Inject
+    private WagonManager wagonManager;
+
+    private Logger logger;
+
+    /**
+     * Shared by all copies, so that they reuse each other's connections. Closed when the copier is disposed of.
+     */
+    private WagonPool pool;
+
+    /**
+     * Runs the copies started with {@link #copyAsync}, on daemon threads. Shut down when the copier is disposed of.
+     */
+    private ExecutorService copies;
+
+    public void copy(Repository sourceRepository, Repository targetRepository, String version)
+            throws WagonException, IOException {
+        copy(sourceRepository, targetRepository, version, new CopyConfiguration());
+    }
+
+    public void copy(
+            Repository sourceRepository,
+            Repository targetRepository,
+            String version,
+            CopyConfiguration configuration)
+            throws WagonException, IOException {
+        reporting(
+                sourceRepository,
+                Collections.singletonList(targetRepository),
+                version,
+                configuration,
+                report -> copy(sourceRepository, targetRepository, version, configuration, report));
+    }
+
+    public void copy(
+            Repository sourceRepository,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration)
+            throws WagonException, IOException {
+        if (targetRepositories.size() == 1) {
+            copy(sourceRepository, targetRepositories.get(0), version, configuration);
+
+            return;
+        }
+
+        if (targetRepositories.stream().map(Repository::getUrl).distinct().count() < targetRepositories.size()) {
+            throw new IllegalArgumentException("The same target repository is given more than once");
+        }
+
+        reporting(
+                sourceRepository,
+                targetRepositories,
+                version,
+                configuration,
+                report -> fanOut(sourceRepository, targetRepositories, version, configuration, report));
+    }
+
+    public Future<Void> copyAsync(
+            Repository sourceRepository,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration) {
+        return copies().submit(() -> {
+            copy(sourceRepository, targetRepositories, version, configuration);
+            return null;
+        });
+    }
+
+    private synchronized ExecutorService copies() {
+        if (copies == null) {
+            AtomicInteger threads = new AtomicInteger();
+
+            copies = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "staging-plugin-copy-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return copies;
+    }
+
+    public void plan(Repository sourceRepository, String version, CopyConfiguration configuration)
+            throws WagonException, IOException {
+        if (configuration.getPlan() == null) {
+            throw new IllegalArgumentException("No plan file is given");
+        }
+
+        CopyReport report = new CopyReport(logger);
+
+        WagonPool pool = pool(configuration);
+
+        Wagon sourceWagon = pool.acquire(sourceRepository);
+
+        logger.info("Looking for files in the source repository to plan the copy of " + version + ".");
+
+        CopyPlan plan = new CopyPlan();
+
+        try (PathSet files = new PathSet()) {
+            for (ListingStrategy strategy :
+                    listingStrategies(pool, sourceRepository, version, configuration, null, report)) {
+                if (strategy.list(sourceWagon, "", files::add)) {
+                    break;
+                }
+            }
+
+            pool.release(sourceWagon);
+
+            // The checksums are those the source repository has for its files. The sizes are only known for a
+            // local source repository, without downloading the files.
+
+            File local = "file".equals(sourceRepository.getProtocol()) ? new File(sourceRepository.getBasedir()) : null;
+
+            ParallelDownloader reader =
+                    new ParallelDownloader(pool, sourceRepository, configuration.getDownloadThreads(), logger);
+
+            schedule(reader, configuration, report.phase("download"));
+
+            reader.start(null, (wagon, path) -> {
+                String checksumPath = path + "." + SHA1;
+
+                plan.add(
+                        path,
+                        local != null ? new File(local, path).length() : -1,
+                        files.contains(checksumPath) ? TargetChecksums.readChecksumFile(wagon, checksumPath) : null);
+            });
+
+            for (String path : files) {
+                reader.submit(path);
+            }
+
+            reader.finish().close();
+        }
+
+        plan.write(configuration.getPlan());
+
+        logger.info("Wrote the plan of " + plan.size() + " file(s) to " + configuration.getPlan());
+    }
+
+    public void commit(List<Repository> targetRepositories, String version, CopyConfiguration configuration)
+            throws WagonException, IOException {
+        int parts = configuration.getPlanParts();
+
+        if (parts < 1) {
+            throw new IllegalArgumentException("The number of parts of the plan is not given");
+        }
+
+        CopyReport report = new CopyReport(logger);
+
+        WagonPool pool = pool(configuration);
+
+        for (Repository targetRepository : targetRepositories) {
+            Wagon targetWagon = pool.acquire(targetRepository);
+
+            if (!(targetWagon instanceof CommandExecutor)) {
+                pool.release(targetWagon);
+
+                throw new IllegalArgumentException("The target repository " + targetRepository.getUrl()
+                        + " cannot execute commands, so no plan can have been copied to it in parts");
+            }
+
+            List<String> renameScriptNames = new ArrayList<>();
+
+            for (int part = 1; part <= parts; part++) {
+                renameScriptNames.add(baseName(version, part, parts) + "-rename.sh");
+            }
+
+            logger.info("Checking that all " + parts + " parts are unpacked in " + targetRepository.getUrl());
+
+            // Fails listing the rename scripts of the parts that are missing, before any part is renamed
+            ((CommandExecutor) targetWagon)
+                    .executeCommand("cd " + ShellCommands.quote(targetRepository.getBasedir()) + " && ls -- "
+                            + renameScriptNames.stream().map(ShellCommands::quote).collect(Collectors.joining(" "))
+                            + " > /dev/null");
+
+            for (String renameScriptName : renameScriptNames) {
+                rename((CommandExecutor) targetWagon, targetRepository.getBasedir(), renameScriptName, report);
+            }
+
+            pool.release(targetWagon);
+        }
+    }
+
+    /**
+     * A copy that records its phases in a report.
+     */
+    private interface ReportedCopy {
+        void run(CopyReport report) throws WagonException, IOException;
+    }
+
+    /**
+     * Runs a copy and writes its report, whether it succeeds or not.
+     */
+    private void reporting(
+            Repository sourceRepository,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration,
+            ReportedCopy copy)
+            throws WagonException, IOException {
+        CopyReport report = new CopyReport(logger);
+        report.setProperty("version", version);
+        report.setProperty("source", sourceRepository.getUrl());
+        report.setProperty(
+                "target", targetRepositories.stream().map(Repository::getUrl).collect(Collectors.joining(", ")));
+
+        File reportFile = configuration.getReportFile() != null
+                ? configuration.getReportFile()
+                : new File(System.getProperty("java.io.tmpdir"), "staging-plugin-" + version + "-report.json");
+
+        boolean succeeded = false;
+
+        try {
+            copy.run(report);
+
+            succeeded = true;
+        } finally {
+            report.setProperty("outcome", succeeded ? "success" : "failure");
+
+            try {
+                report.write(reportFile);
+
+                logger.info("Wrote the report of this run to " + reportFile);
+            } catch (IOException e) {
+                logger.warn("Could not write the report of this run to " + reportFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // CHECKSTYLE_OFF: MethodLength
+    private void copy(
+            Repository sourceRepository,
+            Repository targetRepository,
+            String version,
+            CopyConfiguration configuration,
+            CopyReport report)
+            throws WagonException, IOException {
+        // CHECKSTYLE_ON: MethodLength
+        String prefix = baseName(version, configuration);
+
+        CopyPlan plan = readPlan(configuration);
+
+        ArchiveFormat format = ArchiveFormat.forName(configuration.getArchiveFormat());
+
+        String fileName = prefix + "." + format.getExtension();
+
+        String tempdir = System.getProperty("java.io.tmpdir");
+
+        logger.debug("Writing all output to " + tempdir);
+
+        // Create the renameScript script
+
+        String renameScriptName = prefix + "-rename.sh";
+
+        File renameScript = new File(tempdir, renameScriptName);
+
+        // Work directory
+
+        File basedir = new File(tempdir, prefix);
+
+        WagonPool pool = pool(configuration);
+
+        // Targets that cannot unpack an archive get the files one by one, straight from the work directory
+
+        boolean direct = !canExecuteCommands(pool, targetRepository);
+
+        if (direct && configuration.getPlanParts() > 0) {
+            throw new IllegalArgumentException(
+                    "A part of a plan can only be copied to a target repository that can execute commands");
+        }
+
+        boolean streaming = configuration.isStreaming();
+
+        if (direct && streaming) {
+            logger.warn("Streaming is not supported as the target repository cannot execute commands, files will "
+                    + "be downloaded to " + basedir);
+
+            streaming = false;
+        }
+
+        boolean resume = configuration.isResume();
+
+        if (resume && streaming) {
+            logger.warn("Resuming is not supported when streaming, all files will be downloaded again.");
+
+            resume = false;
+        }
+
+        if (!resume) {
+            FileUtils.deleteDirectory(basedir);
+        } else {
+            // Metadata merged by the previous run is merged again, as it is merged while downloading
+            pruneDirectory(basedir, basedir, s -> !s.endsWith(IN_PROCESS_MARKER));
+        }
+
+        boolean delta = configuration.isDelta();
+
+        if (delta && streaming) {
+            logger.warn("Skipping files present in the target is not supported when streaming.");
+
+            delta = false;
+        }
+
+        basedir.mkdirs();
+
+        File archive = new File(tempdir, fileName);
+
+        List<File> archives = new ArrayList<>();
+
+        if (configuration.getShards() > 1) {
+            for (int i = 1; i <= configuration.getShards(); i++) {
+                archives.add(new File(tempdir, prefix + "-" + i + "." + format.getExtension()));
+            }
+        } else {
+            archives.add(archive);
+        }
+
+        Wagon sourceWagon = pool.acquire(sourceRepository);
+
+        Wagon targetWagon = null;
+
+        PathSet files = null;
+
+        // Whatever fails, the connections are given up and the files written aside are deleted
+
+        try (StagingArchive stagingArchive = direct
+                        ? null
+                        : new StagingArchive(
+                                archives,
+                                version,
+                                configuration.getChecksumAlgorithms(),
+                                configuration.getCompressionThreads(),
+                                format);
+                PathSet archived = new PathSet();
+                PathSet unchanged = new PathSet();
+                // The manifest lives next to the work directory, so that it does not end up in the archive. It is
+                // kept open for the delta, which compares the checksums it records with those of the target.
+                TransferManifest manifest = streaming
+                        ? null
+                        : new TransferManifest(new File(tempdir, prefix + "-manifest.txt"), resume)) {
+            if (stagingArchive != null && configuration.isVerify()) {
+                stagingArchive.recordSha1s();
+            }
+
+            ParallelDownloader.Sink sink = toDirectory(sourceRepository, basedir);
+
+            // Without delta, nothing that happens after the download decides how a file is archived, so it is
+            // archived as soon as it is downloaded. Files skipped when resuming are archived after the download.
+
+            if (!direct && !streaming && !delta) {
+                sink = archiving(sink, stagingArchive, basedir, archived);
+            }
+
+            if (streaming) {
+                // Only the metadata is needed on disk, for merging. Everything else goes straight into the archive.
+                // A download written to the archive as it arrives is tried again as another entry of the same name.
+
+                boolean exclusive = configuration.getDownloadThreads() <= 1;
+
+                ParallelDownloader.Sink metadataSink = sink;
+
+                sink = (wagon, path) -> {
+                    logger.debug("Downloading file from the source repository: " + path);
+
+                    if (isMetadata(path)) {
+                        metadataSink.receive(wagon, path);
+                    } else {
+                        stagingArchive.transfer(wagon, path, exclusive);
+                    }
+                };
+
+                logger.info("Looking for files in the source repository and streaming them to: " + archive);
+            } else {
+                sink = recording(sink, manifest, basedir, resume, plan);
+
+                logger.info("Looking for files in the source repository and downloading them to: " + basedir);
+            }
+
+            // ----------------------------------------------------------------------------
+            // The metadata files of the targetRepositoryUrl are pulled down and merged as
+            // soon as the staged metadata is present locally, over connections to the
+            // target that are opened while the source is still being listed.
+            // ----------------------------------------------------------------------------
+
+            MetadataMerge metadataMerge =
+                    new MetadataMerge(pool, null, targetRepository, basedir, configuration, report);
+
+            ParallelDownloader.Sink downloadSink = sink;
+
+            sink = (wagon, path) -> {
+                downloadSink.receive(wagon, path);
+
+                metadataMerge.submit(path);
+            };
+
+            try {
+                List<ListingStrategy> strategies =
+                        listingStrategies(pool, sourceRepository, version, configuration, plan, report);
+
+                files = download(pool, sourceWagon, sourceRepository, strategies, configuration, sink, report);
+
+                checkCancelled();
+            } catch (WagonException | RuntimeException e) {
+                metadataMerge.cancel();
+
+                throw e;
+            }
+
+            if (resume) {
+                // Leftovers of the previous run, such as files removed from the source since, must not end up in
+                // the archive
+
+                PathSet downloaded = files;
+
+                pruneDirectory(basedir, basedir, s -> downloaded.contains(s) || s.endsWith(IN_PROCESS_MARKER));
+            }
+
+            logger.info("Waiting for the metadata of the target repository to be merged.");
+
+            metadataMerge.finish();
+
+            checkCancelled();
+
+            targetWagon = pool.acquire(targetRepository);
+
+            // ----------------------------------------------------------------------------
+            // Create the Zip file that we will deploy to the targetRepositoryUrl stage
+            // ----------------------------------------------------------------------------
+
+            if (delta) {
+                logger.info("Looking for files already present in the target repository.");
+
+                CopyReport.Phase deltaPhase = report.phase("delta");
+
+                long deltaStart = deltaPhase.start();
+
+                Map<String, String> existing;
+
+                try (PathSet candidates = new PathSet()) {
+                    for (String s : files) {
+                        if (!isMetadata(s)) {
+                            candidates.add(s);
+                        }
+                    }
+
+                    existing = new TargetChecksums(targetWagon, targetRepository.getBasedir()).fetch(candidates);
+                }
+
+                for (Map.Entry<String, String> e : existing.entrySet()) {
+                    if (stagingArchive != null) {
+                        stagingArchive.existsInTarget(e.getKey());
+                    }
+
+                    TransferManifest.Entry entry = manifest.get(e.getKey());
+
+                    // A file without a recorded checksum is staged again
+                    if (entry != null && e.getValue().equalsIgnoreCase(entry.getSha1())) {
+                        unchanged.add(e.getKey());
+                    }
+                }
+
+                deltaPhase.stop(deltaStart);
+
+                logger.info("Skipping " + unchanged.size() + " file(s) that are identical in the target repository.");
+            }
+
+            if (direct) {
+                logger.info("Wagon class '" + targetWagon.getClass().getName() + "' in use for target repository is "
+                        + "not a CommandExecutor, publishing the files one by one.");
+
+                CopyReport.Phase uploadPhase = report.phase("upload");
+
+                DirectPublisher publisher = publisher(pool, targetRepository, version, configuration, uploadPhase);
+
+                long uploadStart = uploadPhase.start();
+
+                publisher.publish(targetWagon, basedir, unchanged);
+
+                uploadPhase.stop(uploadStart);
+
+                metadataMerge.published();
+
+                pool.release(sourceWagon);
+                sourceWagon = null;
+
+                pool.release(targetWagon);
+                targetWagon = null;
+
+                return;
+            }
+
+            logger.info("Creating " + format.getExtension() + " file.");
+
+            CopyReport.Phase archivePhase = report.phase("archive");
+
+            long archiveStart = archivePhase.start();
+
+            // The files archived while they were downloaded are left out, as are those present in the target
+
+            scanDirectory(basedir, basedir, stagingArchive, delta ? unchanged : archived);
+
+            files.close();
+            unchanged.close();
+            archived.close();
+
+            // ----------------------------------------------------------------------------
+            // Create the renameScript script. This is as atomic as we can
+            // ----------------------------------------------------------------------------
+
+            logger.info("Creating rename script.");
+
+            PrintWriter rw = new PrintWriter(new FileWriter(renameScript));
+
+            for (String s : stagingArchive.getMoveCommands()) {
+
+                // We use an explicit unix '\n' line-ending here instead of using the println() method.
+                // Using println() will cause files and folders to have a '\r' at the end if the plugin is run on
+                // Windows.
+                rw.print(s + "\n");
+            }
+
+            rw.close();
+
+            stagingArchive.addUnstaged(renameScript.getName(), renameScript);
+
+            stagingArchive.close();
+
+            archivePhase.stop(archiveStart);
+
+            pool.release(sourceWagon);
+            sourceWagon = null;
+
+            checkCancelled();
+
+            // Push the archive to the target system
+
+            String targetRepoBaseDirectory = targetRepository.getBasedir();
+
+            if (archives.size() == 1) {
+                deploy(targetWagon, archive, targetRepoBaseDirectory, format, report);
+            } else {
+                // Every archive is uploaded and unpacked over its own connection. The rename script only runs once
+                // all of them are unpacked. Concurrent unzips fail when they race to create the same directory, so
+                // the directories are created first.
+
+                createDirectories(
+                        (CommandExecutor) targetWagon, targetRepoBaseDirectory, stagingArchive.getDirectories());
+
+                deployShards(pool, archives, targetRepository, format, report);
+            }
+
+            if (configuration.isVerify()) {
+                verify(targetWagon, targetRepoBaseDirectory, stagingArchive.getSha1s(), report);
+            }
+
+            if (configuration.getPlanParts() > 0) {
+                logger.info("Leaving the rename script " + renameScriptName + " for the commit of the plan.");
+            } else {
+                rename((CommandExecutor) targetWagon, targetRepoBaseDirectory, renameScriptName, report);
+
+                metadataMerge.published();
+            }
+
+            pool.release(targetWagon);
+            targetWagon = null;
+        } finally {
+            if (files != null) {
+                files.close();
+            }
+
+            // A connection left over by a failure may be broken
+            if (sourceWagon != null) {
+                pool.invalidate(sourceWagon);
+            }
+
+            if (targetWagon != null) {
+                pool.invalidate(targetWagon);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a repository can unpack an archive, looking at a connection of the pool.
+     */
+    private static boolean canExecuteCommands(WagonPool pool, Repository repository) throws WagonException {
+        Wagon wagon = pool.acquire(repository);
+
+        pool.release(wagon);
+
+        return wagon instanceof CommandExecutor;
+    }
+
+    /**
+     * Downloads the staged repository once and publishes it to several target repositories at the same time. The
+     * staged files go into zip files shared by all targets that can unpack them, while the metadata is merged for
+     * every target in a work directory of its own, and goes into a zip file of its own along with the rename
+     * script.
+     * <p>
+     * All targets are attempted. The ones that failed are reported together once the others are done.
+     * </p>
+     */
+    private void fanOut(
+            Repository sourceRepository,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration,
+            CopyReport report)
+            throws WagonException, IOException {
+        String prefix = baseName(version, configuration);
+
+        CopyPlan plan = readPlan(configuration);
+
+        String tempdir = System.getProperty("java.io.tmpdir");
+
+        File basedir = new File(tempdir, prefix);
+
+        WagonPool pool = pool(configuration);
+
+        if (configuration.isStreaming() || configuration.isDelta()) {
+            logger.warn("Streaming and skipping files present in the target are not supported with several target "
+                    + "repositories, files will be downloaded to " + basedir);
+        }
+
+        boolean resume = configuration.isResume();
+
+        if (!resume) {
+            FileUtils.deleteDirectory(basedir);
+        }
+
+        basedir.mkdirs();
+
+        logger.info("Looking for files in the source repository and downloading them to: " + basedir);
+
+        TransferManifest manifest = new TransferManifest(new File(tempdir, prefix + "-manifest.txt"), resume);
+
+        Wagon sourceWagon = pool.acquire(sourceRepository);
+
+        PathSet files;
+
+        try {
+            ParallelDownloader.Sink sink =
+                    recording(toDirectory(sourceRepository, basedir), manifest, basedir, resume, plan);
+
+            List<ListingStrategy> strategies =
+                    listingStrategies(pool, sourceRepository, version, configuration, plan, report);
+
+            files = download(pool, sourceWagon, sourceRepository, strategies, configuration, sink, report);
+        } catch (WagonException | RuntimeException e) {
+            pool.invalidate(sourceWagon);
+
+            throw e;
+        } finally {
+            manifest.close();
+        }
+
+        pool.release(sourceWagon);
+
+        if (resume) {
+            pruneDirectory(basedir, basedir, files::contains);
+        }
+
+        checkCancelled();
+
+        Staged staged = share(pool, files, basedir, targetRepositories, version, configuration, report);
+
+        ExecutorService executor = Executors.newFixedThreadPool(targetRepositories.size());
+
+        Map<String, Exception> failures = new TreeMap<>();
+
+        try {
+            Map<String, Future<?>> futures = new LinkedHashMap<>();
+
+            for (int i = 0; i < targetRepositories.size(); i++) {
+                Repository targetRepository = targetRepositories.get(i);
+
+                File workdir = new File(tempdir, prefix + "-target-" + (i + 1));
+
+                futures.put(targetRepository.getUrl(), executor.submit(() -> {
+                    publish(pool, targetRepository, version, configuration, staged, workdir, report);
+                    return null;
+                }));
+            }
+
+            for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get();
+
+                    report.setProperty(future.getKey(), "success");
+                } catch (ExecutionException e) {
+                    failures.put(future.getKey(), (Exception) e.getCause());
+
+                    report.setProperty(future.getKey(), "failure: " + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new TransferFailedException("Interrupted while publishing to the target repositories", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                logger.error("Failed to publish to " + failure.getKey() + ": " + failure.getValue().getMessage());
+            }
+
+            throw new TransferFailedException(
+                    failures.size() + " of " + targetRepositories.size() + " target repositories could not be "
+                            + "published to: " + String.join(", ", failures.keySet()),
+                    failures.values().iterator().next());
+        }
+    }
 
-    private MetadataXpp3Writer writer = new MetadataXpp3Writer();
+    /**
+     * Archives the downloaded files for a copy to several target repositories, but for the metadata, which is
+     * merged for every target separately.
+     *
+     * @param files the paths of the downloaded files, closed once they are archived
+     * @param basedir the work directory holding the downloaded files
+     */
+    private Staged share(
+            WagonPool pool,
+            PathSet files,
+            File basedir,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration,
+            CopyReport report)
+            throws WagonException, IOException {
+        Staged staged = new Staged(basedir);
 
-    @Inject
-    private WagonManager wagonManager;
+        try (PathSet excluded = new PathSet()) {
+            for (String s : files) {
+                if (isMetadata(s)) {
+                    staged.metadata.add(s);
+                    excluded.add(s);
+                }
+            }
 
-    private Logger logger;
+            files.close();
 
-    // CHECKSTYLE_OFF: MethodLength
-    public void copy(Repository sourceRepository, Repository targetRepository, String version)
-            throws WagonException, IOException {
-        // CHECKSTYLE_ON: MethodLength
-        String prefix = "staging-plugin";
+            boolean archiving = false;
 
-        String fileName = prefix + "-" + version + ".zip";
+            for (Repository targetRepository : targetRepositories) {
+                archiving |= canExecuteCommands(pool, targetRepository);
+            }
 
-        String tempdir = System.getProperty("java.io.tmpdir");
+            if (!archiving) {
+                return staged;
+            }
 
-        logger.debug("Writing all output to " + tempdir);
+            ArchiveFormat format = ArchiveFormat.forName(configuration.getArchiveFormat());
 
-        // Create the renameScript script
+            logger.info("Creating " + format.getExtension() + " file.");
 
-        String renameScriptName = prefix + "-" + version + "-rename.sh";
+            String prefix = basedir.getPath();
 
-        File renameScript = new File(tempdir, renameScriptName);
+            if (configuration.getShards() > 1) {
+                for (int i = 1; i <= configuration.getShards(); i++) {
+                    staged.archives.add(new File(prefix + "-" + i + "." + format.getExtension()));
+                }
+            } else {
+                staged.archives.add(new File(prefix + "." + format.getExtension()));
+            }
 
-        // Work directory
+            CopyReport.Phase archivePhase = report.phase("archive");
 
-        File basedir = new File(tempdir, prefix + "-" + version);
+            long archiveStart = archivePhase.start();
 
-        FileUtils.deleteDirectory(basedir);
+            try (StagingArchive stagingArchive = new StagingArchive(
+                    staged.archives,
+                    version,
+                    configuration.getChecksumAlgorithms(),
+                    configuration.getCompressionThreads(),
+                    format)) {
+                if (configuration.isVerify()) {
+                    stagingArchive.recordSha1s();
+                }
 
-        basedir.mkdirs();
+                scanDirectory(basedir, basedir, stagingArchive, excluded);
+
+                stagingArchive.getMoveCommands().forEach(staged.moveCommands::add);
+                stagingArchive.getDirectories().forEach(staged.directories::add);
+
+                // Complete once the archive is closed
+                staged.sha1s = stagingArchive.getSha1s();
+            }
 
-        Wagon sourceWagon = wagonManager.getWagon(sourceRepository);
-        AuthenticationInfo sourceAuth = wagonManager.getAuthenticationInfo(sourceRepository.getId());
+            archivePhase.stop(archiveStart);
+        }
 
-        sourceWagon.connect(sourceRepository, sourceAuth);
+        return staged;
+    }
 
-        logger.info("Looking for files in the source repository.");
+    /**
+     * Publishes the downloaded files to one of several target repositories.
+     *
+     * @param staged what the targets share
+     * @param workdir the work directory of this target, to merge the metadata in
+     */
+    private void publish(
+            WagonPool pool,
+            Repository targetRepository,
+            String version,
+            CopyConfiguration configuration,
+            Staged staged,
+            File workdir,
+            CopyReport report)
+            throws WagonException, IOException {
+        FileUtils.deleteDirectory(workdir);
 
-        List<String> files = new ArrayList<String>();
+        for (String path : staged.metadata) {
+            FileUtils.copyFile(new File(staged.basedir, path), new File(workdir, path));
+        }
 
-        scan(sourceWagon, "", files);
+        logger.info("Downloading metadata from the target repository: " + targetRepository.getUrl());
 
-        logger.info("Downloading files from the source repository to: " + basedir);
+        Wagon targetWagon = pool.acquire(targetRepository);
 
-        for (String s : files) {
+        MetadataMerge metadataMerge =
+                mergeMetadata(pool, targetWagon, targetRepository, workdir, staged.metadata, configuration, report);
 
-            if (s.contains(".svn")) {
-                continue;
+        if (!(targetWagon instanceof CommandExecutor)) {
+            if (configuration.getPlanParts() > 0) {
+                throw new IllegalArgumentException(
+                        "A part of a plan can only be copied to a target repository that can execute commands");
             }
 
-            File f = new File(basedir, s);
+            CopyReport.Phase uploadPhase = report.phase("upload");
 
-            FileUtils.forceMkdirParent(f);
+            DirectPublisher publisher = publisher(pool, targetRepository, version, configuration, uploadPhase);
 
-            logger.info("Downloading file from the source repository: " + s);
+            long uploadStart = uploadPhase.start();
 
-            sourceWagon.get(s, f);
-        }
+            // The checksums generated are written to the work directory of this target, next to its metadata
+            try (PathSet excluded = new PathSet()) {
+                publisher.publish(targetWagon, staged.basedir, workdir, excluded);
+            }
 
-        // ----------------------------------------------------------------------------
-        // Now all the files are present locally and now we are going to grab the
-        // metadata files from the targetRepositoryUrl and pull those down locally
-        // so that we can merge the metadata.
-        // ----------------------------------------------------------------------------
+            uploadPhase.stop(uploadStart);
 
-        logger.info("Downloading metadata from the target repository.");
+            metadataMerge.published();
 
-        Wagon targetWagon = wagonManager.getWagon(targetRepository);
+            pool.release(targetWagon);
 
-        if (!(targetWagon instanceof CommandExecutor)) {
-            throw new CommandExecutionException("Wagon class '"
-                    + targetWagon.getClass().getName() + "' in use for target repository is not a CommandExecutor");
+            return;
         }
 
-        AuthenticationInfo targetAuth = wagonManager.getAuthenticationInfo(targetRepository.getId());
-
-        targetWagon.connect(targetRepository, targetAuth);
+        String renameScriptName = baseName(version, configuration) + "-rename.sh";
 
-        PrintWriter rw = new PrintWriter(new FileWriter(renameScript));
+        File renameScript = new File(workdir.getPath() + "-rename.sh");
 
-        File archive = new File(tempdir, fileName);
+        ArchiveFormat format = ArchiveFormat.forName(configuration.getArchiveFormat());
 
-        for (String s : files) {
+        File metadataArchive = new File(workdir.getPath() + "-metadata." + format.getExtension());
 
-            if (s.startsWith("/")) {
-                s = s.substring(1);
+        try (PathSet excluded = new PathSet();
+                PathSet allMoveCommands = new PathSet();
+                PathSet allDirectories = new PathSet();
+                StagingArchive stagingArchive = new StagingArchive(
+                        Collections.singletonList(metadataArchive),
+                        version,
+                        configuration.getChecksumAlgorithms(),
+                        1,
+                        format)) {
+            if (configuration.isVerify()) {
+                stagingArchive.recordSha1s();
             }
 
-            if (s.endsWith(MAVEN_METADATA)) {
-                File emf = new File(basedir, s + IN_PROCESS_MARKER);
-
-                try {
-                    targetWagon.get(s, emf);
-                } catch (ResourceDoesNotExistException e) {
-                    // We don't have an equivalent on the targetRepositoryUrl side because we have something
-                    // new on the sourceRepositoryUrl side so just skip the metadata merging.
+            scanDirectory(workdir, workdir, stagingArchive, excluded);
 
-                    continue;
-                }
+            staged.moveCommands.forEach(allMoveCommands::add);
+            stagingArchive.getMoveCommands().forEach(allMoveCommands::add);
 
-                try {
-                    mergeMetadata(emf);
-                } catch (XmlPullParserException e) {
-                    throw new IOException("Metadata file is corrupt " + s + " Reason: " + e.getMessage());
+            // Sorted, as in a single archive
+            try (PrintWriter rw = new PrintWriter(new FileWriter(renameScript))) {
+                for (String s : allMoveCommands) {
+                    rw.print(s + "\n");
                 }
             }
-        }
 
-        Set<String> moveCommands = new TreeSet<>();
+            stagingArchive.addUnstaged(renameScriptName, renameScript);
 
-        // ----------------------------------------------------------------------------
-        // Create the Zip file that we will deploy to the targetRepositoryUrl stage
-        // ----------------------------------------------------------------------------
+            // Closed before it is deployed, closing it again at the end does nothing
+            stagingArchive.close();
 
-        logger.info("Creating zip file.");
+            staged.directories.forEach(allDirectories::add);
+            stagingArchive.getDirectories().forEach(allDirectories::add);
 
-        OutputStream os = new FileOutputStream(archive);
+            String targetRepoBaseDirectory = targetRepository.getBasedir();
 
-        ZipOutputStream zos = new ZipOutputStream(os);
+            List<File> all = new ArrayList<>(staged.archives);
+            all.add(metadataArchive);
 
-        scanDirectory(basedir, basedir, zos, version, moveCommands);
+            // The archives are unpacked at the same time, see the single target copy
 
-        // ----------------------------------------------------------------------------
-        // Create the renameScript script. This is as atomic as we can
-        // ----------------------------------------------------------------------------
+            createDirectories((CommandExecutor) targetWagon, targetRepoBaseDirectory, allDirectories);
 
-        logger.info("Creating rename script.");
+            deployShards(pool, all, targetRepository, format, report);
 
-        for (Object moveCommand : moveCommands) {
-            String s = (String) moveCommand;
+            if (configuration.isVerify()) {
+                Map<String, String> sha1s = new TreeMap<>(staged.sha1s);
+                sha1s.putAll(stagingArchive.getSha1s());
+
+                verify(targetWagon, targetRepoBaseDirectory, sha1s, report);
+            }
+
+            if (configuration.getPlanParts() > 0) {
+                logger.info("Leaving the rename script " + renameScriptName + " for the commit of the plan.");
+            } else {
+                rename((CommandExecutor) targetWagon, targetRepoBaseDirectory, renameScriptName, report);
 
-            // We use an explicit unix '\n' line-ending here instead of using the println() method.
-            // Using println() will cause files and folders to have a '\r' at the end if the plugin is run on Windows.
-            rw.print(s + "\n");
+                metadataMerge.published();
+            }
         }
 
-        rw.close();
+        pool.release(targetWagon);
+    }
 
-        ZipEntry e = new ZipEntry(renameScript.getName());
+    /**
+     * Lists the source repository and downloads the files found into the sink, while the listing goes on.
+     *
+     * @param strategies the ways of listing the source repository, see {@link #listingStrategies}
+     * @return the paths of the files downloaded
+     */
+    private PathSet download(
+            WagonPool pool,
+            Wagon sourceWagon,
+            Repository sourceRepository,
+            List<ListingStrategy> strategies,
+            CopyConfiguration configuration,
+            ParallelDownloader.Sink sink,
+            CopyReport report)
+            throws WagonException {
+        // Files are downloaded as soon as the scanner finds them. The downloader opens its own connections
+        // as the source Wagon is busy scanning.
+
+        ParallelDownloader downloader = new ParallelDownloader(
+                pool, sourceRepository, configuration.getDownloadThreads(), logger);
+
+        CopyReport.Phase scanPhase = report.phase("scan");
+        CopyReport.Phase downloadPhase = report.phase("download");
+
+        schedule(downloader, configuration, downloadPhase);
+
+        if (configuration.getPathMemoryLimit() > 0) {
+            downloader.spillPaths(
+                    new File(System.getProperty("java.io.tmpdir")), configuration.getPathMemoryLimit() * 1024L * 1024L);
+        }
 
-        zos.putNextEntry(e);
+        long downloadStart = downloadPhase.start();
 
-        InputStream is = new FileInputStream(renameScript);
+        downloader.start(null, sink);
 
-        IOUtils.copy(is, zos);
+        try {
+            long scanStart = scanPhase.start();
 
-        zos.close();
-        is.close();
+            for (ListingStrategy strategy : strategies) {
+                boolean listed = strategy.list(sourceWagon, "", path -> {
+                    scanPhase.count();
 
-        sourceWagon.disconnect();
+                    downloader.submit(path);
+                });
 
-        // Push the Zip to the target system
+                if (listed) {
+                    break;
+                }
+            }
 
-        logger.info("Uploading zip file to the target repository.");
+            scanPhase.stop(scanStart);
+        } catch (WagonException | RuntimeException e) {
+            downloader.cancel();
 
-        targetWagon.put(archive, fileName);
+            throw e;
+        }
 
-        logger.info("Unpacking zip file on the target machine.");
+        PathSet files = downloader.finish();
 
-        String targetRepoBaseDirectory = targetRepository.getBasedir();
+        downloadPhase.stop(downloadStart);
 
-        // We use the super quiet option here as all the noise seems to kill/stall the connection
+        return files;
+    }
 
-        String command = "unzip -o -qq -d " + targetRepoBaseDirectory + " " + targetRepoBaseDirectory + "/" + fileName;
+    /**
+     * Merges the staged metadata with the metadata of the target repository.
+     *
+     * @param basedir the work directory holding the staged metadata
+     * @param files the paths of the staged files
+     * @return the merge, to tell once the merged metadata is published
+     */
+    private MetadataMerge mergeMetadata(
+            WagonPool pool,
+            Wagon targetWagon,
+            Repository targetRepository,
+            File basedir,
+            Iterable<String> files,
+            CopyConfiguration configuration,
+            CopyReport report)
+            throws WagonException, IOException {
+        MetadataMerge metadataMerge =
+                new MetadataMerge(pool, targetWagon, targetRepository, basedir, configuration, report);
 
-        ((CommandExecutor) targetWagon).executeCommand(command);
+        for (String s : files) {
+            metadataMerge.submit(s);
+        }
 
-        logger.info("Deleting zip file from the target repository.");
+        metadataMerge.finish();
 
-        command = "rm -f " + targetRepoBaseDirectory + "/" + fileName;
+        return metadataMerge;
+    }
 
-        ((CommandExecutor) targetWagon).executeCommand(command);
+    /**
+     * Runs the rename script unpacked on the target machine, which moves the in-process directories and metadata
+     * into place, and deletes it.
+     */
+    private void rename(
+            CommandExecutor targetWagon, String targetRepoBaseDirectory, String renameScriptName, CopyReport report)
+            throws WagonException {
+        // The last chance for a cancelled copy to leave the new version out of the metadata
+        checkCancelled();
 
         logger.info("Running rename script on the target machine.");
 
-        command = "cd " + targetRepoBaseDirectory + "; sh " + renameScriptName;
+        CopyReport.Phase renamePhase = report.phase("rename");
 
-        ((CommandExecutor) targetWagon).executeCommand(command);
+        long renameStart = renamePhase.start();
+
+        String command = "cd " + targetRepoBaseDirectory + "; sh " + renameScriptName;
+
+        targetWagon.executeCommand(command);
+
+        renamePhase.stop(renameStart);
 
         logger.info("Deleting rename script from the target repository.");
 
         command = "rm -f " + targetRepoBaseDirectory + "/" + renameScriptName;
 
-        ((CommandExecutor) targetWagon).executeCommand(command);
+        targetWagon.executeCommand(command);
+    }
+
+    /**
+     * Checks that the files unpacked on the target machine are the ones that were archived, before the rename
+     * script moves them into place. The checksums are computed on the target machine, for many files per
+     * command.
+     *
+     * @param sha1s the SHA-1 checksums of the archived files, keyed by entry name
+     * @throws TransferFailedException if a file is missing or differs, the new version is then left unpublished
+     */
+    private void verify(
+            Wagon targetWagon, String targetRepoBaseDirectory, Map<String, String> sha1s, CopyReport report)
+            throws WagonException, IOException {
+        TargetChecksums checksums = new TargetChecksums(targetWagon, targetRepoBaseDirectory);
+
+        // The checksum files of the target are those that were staged, they cannot tell whether a file was damaged
+        if (!checksums.canCompute()) {
+            logger.warn("The target machine has neither sha1sum, shasum nor sha1, the unpacked files are not "
+                    + "verified.");
+
+            return;
+        }
+
+        logger.info("Verifying the " + sha1s.size() + " unpacked file(s) on the target machine.");
+
+        CopyReport.Phase verifyPhase = report.phase("verify");
+
+        long verifyStart = verifyPhase.start();
+
+        Map<String, String> unpacked = checksums.fetch(sha1s.keySet());
+
+        verifyPhase.stop(verifyStart);
+
+        List<String> mismatches = new ArrayList<>();
 
-        targetWagon.disconnect();
+        for (Map.Entry<String, String> e : sha1s.entrySet()) {
+            String sha1 = unpacked.get(e.getKey());
+
+            if (sha1 == null) {
+                logger.error("Missing on the target machine: " + e.getKey());
+
+                mismatches.add(e.getKey());
+            } else if (!sha1.equalsIgnoreCase(e.getValue())) {
+                logger.error("Differs on the target machine: " + e.getKey() + " has SHA-1 " + sha1 + " instead of "
+                        + e.getValue());
+
+                mismatches.add(e.getKey());
+            }
+        }
+
+        if (!mismatches.isEmpty()) {
+            throw new TransferFailedException(mismatches.size() + " unpacked file(s) do not match what was staged: "
+                    + String.join(", ", mismatches));
+        }
     }
 
-    private void scanDirectory(File basedir, File dir, ZipOutputStream zos, String version, Set<String> moveCommands)
-            throws IOException {
-        if (dir == null) {
+    private void deploy(
+            Wagon targetWagon, File archive, String targetRepoBaseDirectory, ArchiveFormat format, CopyReport report)
+            throws WagonException {
+        if (format.isStreamed()) {
+            deployStreamed((CommandExecutor) targetWagon, archive, targetRepoBaseDirectory, format, report);
+
             return;
         }
 
-        File[] files = dir.listFiles();
+        logger.info("Uploading zip file to the target repository: " + archive.getName());
 
-        for (File f : files) {
-            if (f.isDirectory()) {
-                if (f.getName().equals(".svn")) {
-                    continue;
-                }
+        CopyReport.Phase uploadPhase = report.phase("upload");
 
-                if (f.getName().endsWith(version)) {
-                    String s = f.getAbsolutePath()
-                            .substring(basedir.getAbsolutePath().length() + 1);
-                    s = s.replace('\\', '/');
+        long uploadStart = uploadPhase.start();
 
-                    moveCommands.add("mv " + s + IN_PROCESS_MARKER + " " + s);
-                }
+        targetWagon.addTransferListener(uploadPhase);
 
-                scanDirectory(basedir, f, zos, version, moveCommands);
-            } else {
-                try (InputStream is = new FileInputStream(f)) {
-                    String s = f.getAbsolutePath()
-                            .substring(basedir.getAbsolutePath().length() + 1);
-                    s = s.replace('\\', '/');
+        try {
+            targetWagon.put(archive, archive.getName());
+        } finally {
+            targetWagon.removeTransferListener(uploadPhase);
+        }
 
-                    // We are marking any version directories with the in-process flag so that
-                    // anything being unpacked on the target side will not be recognized by Maven
-                    // and so users cannot download partially uploaded files.
+        uploadPhase.stop(uploadStart);
 
-                    String vtag = "/" + version;
+        logger.info("Unpacking zip file on the target machine: " + archive.getName());
 
-                    s = s.replace(vtag + "/", vtag + IN_PROCESS_MARKER + "/");
+        CopyReport.Phase unzipPhase = report.phase("unzip");
 
-                    ZipEntry e = new ZipEntry(s);
+        long unzipStart = unzipPhase.start();
 
-                    zos.putNextEntry(e);
+        String command =
+                format.unpackCommand(targetRepoBaseDirectory, targetRepoBaseDirectory + "/" + archive.getName());
 
-                    IOUtils.copy(is, zos);
+        ((CommandExecutor) targetWagon).executeCommand(command);
 
-                    int idx = s.indexOf(IN_PROCESS_MARKER);
+        unzipPhase.stop(unzipStart);
 
-                    if (idx > 0) {
-                        String d = s.substring(0, idx);
+        logger.info("Deleting zip file from the target repository: " + archive.getName());
 
-                        moveCommands.add("mv " + d + IN_PROCESS_MARKER + " " + d);
-                    }
-                }
-            }
+        command = "rm -f " + targetRepoBaseDirectory + "/" + archive.getName();
+
+        ((CommandExecutor) targetWagon).executeCommand(command);
+    }
+
+    /**
+     * Uploads an archive into a named pipe on the target machine, which <code>tar</code> reads from in the
+     * background, so that the archive is unpacked while it is uploaded and never stored on the target. The exit
+     * code of <code>tar</code> is written to a status file next to the pipe, which is waited for once the upload
+     * is done.
+     */
+    private void deployStreamed(
+            CommandExecutor targetWagon,
+            File archive,
+            String targetRepoBaseDirectory,
+            ArchiveFormat format,
+            CopyReport report)
+            throws WagonException {
+        String pipe = targetRepoBaseDirectory + "/" + archive.getName();
+        String status = pipe + ".status";
+        String errors = pipe + ".log";
+
+        // The commands are run by sh, whatever the login shell of the target is
+        targetWagon.executeCommand("sh -c " + ShellCommands.quote("rm -f " + pipe + " " + status + " " + errors
+                + " && mkfifo " + pipe + " && { (exec < /dev/null > /dev/null 2>&1; "
+                + format.unpackCommand(targetRepoBaseDirectory, pipe) + " 2> " + errors + "; echo $? > " + status
+                + ") & }"));
+
+        logger.info("Uploading " + format.getExtension() + " file into tar on the target machine: "
+                + archive.getName());
+
+        CopyReport.Phase uploadPhase = report.phase("upload");
+
+        long uploadStart = uploadPhase.start();
+
+        targetWagon.addTransferListener(uploadPhase);
+
+        try {
+            targetWagon.put(archive, archive.getName());
+        } catch (WagonException | RuntimeException e) {
+            // Until the pipe is opened for writing, tar waits for it. Opening and closing it ends tar, which
+            // then writes its status.
+            targetWagon.executeCommand(
+                    "sh -c " + ShellCommands.quote("while [ ! -s " + status + " ]; do : <> " + pipe
+                            + "; sleep 1; done; rm -f " + pipe + " " + status + " " + errors),
+                    true);
+
+            throw e;
+        } finally {
+            targetWagon.removeTransferListener(uploadPhase);
         }
+
+        uploadPhase.stop(uploadStart);
+
+        logger.info("Waiting for tar to finish unpacking on the target machine: " + archive.getName());
+
+        CopyReport.Phase unpackPhase = report.phase("unpack");
+
+        long unpackStart = unpackPhase.start();
+
+        targetWagon.executeCommand("sh -c " + ShellCommands.quote("while [ ! -s " + status
+                + " ]; do sleep 0.1 2> /dev/null || sleep 1; done; s=$(cat " + status + "); cat " + errors
+                + " >&2; rm -f " + pipe + " " + status + " " + errors + "; exit $s"));
+
+        unpackPhase.stop(unpackStart);
     }
 
-    private void mergeMetadata(File existingMetadata) throws IOException, XmlPullParserException {
-        // Existing Metadata in target stage
+    /**
+     * @param plan the plan to copy instead of listing the source repository, or <code>null</code>
+     * @return the ways of listing the source repository, in the order to try them. The last one always succeeds.
+     */
+    private List<ListingStrategy> listingStrategies(
+            WagonPool pool,
+            Repository sourceRepository,
+            String version,
+            CopyConfiguration configuration,
+            CopyPlan plan,
+            CopyReport report) {
+        if (plan != null) {
+            return Collections.singletonList(
+                    configuration.getPlanParts() > 0
+                            ? plan.listing(configuration.getPlanPart(), configuration.getPlanParts(), version)
+                            : plan.listing(1, 1, version));
+        }
+
+        ScanFilter filter = new ScanFilter(
+                configuration.isAllVersions() ? null : version,
+                configuration.getIncludes(),
+                configuration.getExcludes());
+
+        List<ListingStrategy> strategies = new ArrayList<>();
+
+        if (configuration.getListingIndex() != null) {
+            strategies.add(new IndexListing(configuration.getListingIndex(), filter, logger));
+        }
 
-        Reader existingMetadataReader = new FileReader(existingMetadata);
+        if (configuration.isRemoteListing()) {
+            strategies.add(new FindListing(filter, logger));
+        }
 
-        Metadata existing = reader.read(existingMetadataReader);
+        RepositoryScanner scanner =
+                new RepositoryScanner(pool, sourceRepository, configuration.getScanThreads(), filter, logger);
 
-        // Staged Metadata
+        scanner.setRetryPolicy(retryPolicy(configuration), report.phase("scan")::retried);
 
-        File stagedMetadataFile = new File(existingMetadata.getParentFile(), MAVEN_METADATA);
+        strategies.add(scanner);
 
-        Reader stagedMetadataReader = new FileReader(stagedMetadataFile);
+        return strategies;
+    }
 
-        Metadata staged = reader.read(stagedMetadataReader);
+    /**
+     * @return the retry policy of the transfers of a copy
+     */
+    private static RetryPolicy retryPolicy(CopyConfiguration configuration) {
+        return new RetryPolicy(configuration.getRetries(), configuration.getRetryDelay());
+    }
 
-        // Merge
+    /**
+     * Sets up a downloader to try failed transfers again and adapt its concurrency as configured, and to record
+     * its transfers in a phase.
+     */
+    private static void schedule(
+            ParallelDownloader downloader, CopyConfiguration configuration, CopyReport.Phase phase) {
+        downloader.addTransferListener(phase);
 
-        existing.merge(staged);
+        downloader.setRetryPolicy(retryPolicy(configuration), phase::retried);
 
-        try (Writer writer = new FileWriter(existingMetadata)) {
-            this.writer.write(writer, existing);
+        if (configuration.isAdaptiveConcurrency()) {
+            downloader.adaptConcurrency();
         }
+    }
 
-        stagedMetadataReader.close();
-        existingMetadataReader.close();
+    /**
+     * @return a publisher for a target repository that cannot unpack an archive, recording its uploads in a phase
+     */
+    private DirectPublisher publisher(
+            WagonPool pool,
+            Repository targetRepository,
+            String version,
+            CopyConfiguration configuration,
+            CopyReport.Phase uploadPhase) {
+        DirectPublisher publisher = new DirectPublisher(
+                pool,
+                targetRepository,
+                version,
+                configuration.getChecksumAlgorithms(),
+                configuration.getUploadThreads(),
+                logger);
+
+        publisher.addTransferListener(uploadPhase);
+
+        publisher.setRetryPolicy(retryPolicy(configuration), uploadPhase::retried);
+
+        if (configuration.isAdaptiveConcurrency()) {
+            publisher.adaptConcurrency();
+        }
 
-        // Mark all metadata as in-process and regenerate the checksums as they will be different
-        // after the merger
+        return publisher;
+    }
 
-        try {
-            File newMd5 = new File(existingMetadata.getParentFile(), MAVEN_METADATA + ".md5" + IN_PROCESS_MARKER);
+    private void createDirectories(CommandExecutor targetWagon, String targetRepoBaseDirectory, Iterable<String> paths)
+            throws WagonException {
+        String prefix = "cd " + ShellCommands.quote(targetRepoBaseDirectory) + " && mkdir -p --";
 
-            FileUtils.writeStringToFile(newMd5, checksum(existingMetadata, MD5));
+        StringBuilder command = new StringBuilder(prefix);
 
-            File oldMd5 = new File(existingMetadata.getParentFile(), MAVEN_METADATA + ".md5");
+        for (String path : paths) {
+            if (command.length() + path.length() + 3 > TargetChecksums.MAX_COMMAND_LENGTH) {
+                targetWagon.executeCommand(command.toString());
 
-            oldMd5.delete();
+                command.setLength(0);
+                command.append(prefix);
+            }
+
+            command.append(' ').append(ShellCommands.quote(path));
+        }
+
+        if (command.length() > prefix.length()) {
+            targetWagon.executeCommand(command.toString());
+        }
+    }
 
-            File newSha1 = new File(existingMetadata.getParentFile(), MAVEN_METADATA + ".sha1" + IN_PROCESS_MARKER);
+    private void deployShards(
+            WagonPool pool,
+            List<File> archives,
+            Repository targetRepository,
+            ArchiveFormat format,
+            CopyReport report)
+            throws WagonException {
+        ExecutorService executor = Executors.newFixedThreadPool(archives.size());
 
-            FileUtils.writeStringToFile(newSha1, checksum(existingMetadata, SHA1));
+        Map<String, Exception> failures = new TreeMap<>();
 
-            File oldSha1 = new File(existingMetadata.getParentFile(), MAVEN_METADATA + ".sha1");
+        try {
+            Map<String, Future<?>> futures = new LinkedHashMap<>();
 
-            oldSha1.delete();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            for (File archive : archives) {
+                futures.put(archive.getName(), executor.submit(() -> {
+                    Wagon wagon = pool.acquire(targetRepository);
+
+                    try {
+                        deploy(wagon, archive, targetRepository.getBasedir(), format, report);
+                    } finally {
+                        pool.release(wagon);
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get();
+                } catch (ExecutionException e) {
+                    failures.put(future.getKey(), (Exception) e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new TransferFailedException("Interrupted while deploying to " + targetRepository.getUrl(), e);
+        } finally {
+            executor.shutdownNow();
         }
 
-        // We have the new merged copy so we're good
+        if (!failures.isEmpty()) {
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                logger.error("Failed to deploy " + failure.getKey() + ": " + failure.getValue().getMessage());
+            }
 
-        stagedMetadataFile.delete();
+            throw new TransferFailedException(
+                    failures.size() + " archive(s) could not be deployed to " + targetRepository.getUrl(),
+                    failures.values().iterator().next());
+        }
     }
 
-    private String checksum(File file, String type) throws IOException, NoSuchAlgorithmException {
-        MessageDigest md5 = MessageDigest.getInstance(type);
+    /**
+     * Adds the files below <code>dir</code> to the archive, leaving out <code>.svn</code> directories and the
+     * excluded paths.
+     */
+    static void scanDirectory(File basedir, File dir, StagingArchive archive, PathSet excluded)
+            throws IOException {
+        if (dir == null) {
+            return;
+        }
+
+        File[] files = dir.listFiles();
+
+        for (File f : files) {
+            String s = f.getAbsolutePath().substring(basedir.getAbsolutePath().length() + 1);
+            s = s.replace('\\', '/');
 
-        try (InputStream is = new FileInputStream(file)) {
-            // CHECKSTYLE_OFF: MagicNumber
-            byte[] buf = new byte[8192];
-            // CHECKSTYLE_ON: MagicNumber
+            if (f.isDirectory()) {
+                if (f.getName().equals(".svn")) {
+                    continue;
+                }
 
-            int i;
+                archive.addDirectory(s);
 
-            while ((i = is.read(buf)) >= 0) {
-                md5.update(buf, 0, i);
+                scanDirectory(basedir, f, archive, excluded);
+            } else if (!excluded.contains(s)) {
+                archive.add(s, f);
             }
         }
+    }
 
-        return encode(md5.digest());
+    /**
+     * Wraps a sink that downloads into the work directory to add every file but the metadata to the archive once
+     * it is downloaded.
+     *
+     * @param archived receives the paths of the files added to the archive
+     */
+    private static ParallelDownloader.Sink archiving(
+            ParallelDownloader.Sink sink, StagingArchive stagingArchive, File basedir, PathSet archived) {
+        return (wagon, path) -> {
+            sink.receive(wagon, path);
+
+            if (!isMetadata(path)) {
+                stagingArchive.add(path, new File(basedir, path));
+
+                synchronized (archived) {
+                    archived.add(path);
+                }
+            }
+        };
     }
 
-    protected String encode(byte[] binaryData) {
-        // CHECKSTYLE_OFF: MagicNumber
-        if (binaryData.length != 16 && binaryData.length != 20) {
-            int bitLength = binaryData.length * 8;
-            throw new IllegalArgumentException("Unrecognised length for binary data: " + bitLength + " bits");
+    /**
+     * @return a sink putting the files of the source repository in the work directory. The files of a
+     *         <code>file:</code> repository are linked rather than copied.
+     */
+    private static ParallelDownloader.Sink toDirectory(Repository sourceRepository, File basedir) {
+        if ("file".equals(sourceRepository.getProtocol())) {
+            return ParallelDownloader.linkToDirectory(new File(sourceRepository.getBasedir()), basedir);
         }
-        // CHECKSTYLE_ON: MagicNumber
 
-        String retValue = "";
+        return ParallelDownloader.toDirectory(basedir);
+    }
+
+    /**
+     * Wraps a sink that downloads into the work directory to record every transfer in the manifest. When
+     * resuming, files that were downloaded completely before and whose checksum still matches the
+     * <code>.sha1</code> file of the source repository are not downloaded again. Metadata and checksum files
+     * are small and always downloaded, the metadata files are modified by merging anyway.
+     *
+     * @param plan the plan the downloaded files are checked against, or <code>null</code>
+     */
+    private ParallelDownloader.Sink recording(
+            ParallelDownloader.Sink sink, TransferManifest manifest, File basedir, boolean resume, CopyPlan plan) {
+        ThreadLocal<Checksums> sha1 = ThreadLocal.withInitial(() -> new Checksums(Collections.singleton(SHA1)));
+
+        return (wagon, path) -> {
+            File f = new File(basedir, path);
+
+            if (resume && !isMetadata(path) && !isChecksum(path) && isUpToDate(wagon, path, f, manifest.get(path))) {
+                logger.debug("Skipping file already downloaded: " + path);
+
+                return;
+            }
+
+            logger.debug("Downloading file from the source repository: " + path);
 
-        for (byte aBinaryData : binaryData) {
-            // CHECKSTYLE_OFF: MagicNumber
-            String t = Integer.toHexString(aBinaryData & 0xff);
-            // CHECKSTYLE_ON: MagicNumber
+            manifest.record(path, TransferManifest.State.PENDING, -1, "-");
 
-            if (t.length() == 1) {
-                retValue += ("0" + t);
-            } else {
-                retValue += t;
+            // The checksum is computed from the bytes as they are transferred, rather than reading the file again
+            Checksums checksums = sha1.get();
+            checksums.reset();
+
+            TransferListener listener = checksums.listener();
+
+            wagon.addTransferListener(listener);
+
+            try {
+                sink.receive(wagon, path);
+            } finally {
+                wagon.removeTransferListener(listener);
+            }
+
+            // Fall back to reading the file for Wagons that do not report their progress
+            Map<String, String> digests = checksums.getCount() == f.length() ? checksums.digest() : checksums.digest(f);
+
+            manifest.record(path, TransferManifest.State.DOWNLOADED, f.length(), digests.get(SHA1));
+
+            if (plan != null) {
+                plan.check(path, f);
             }
+        };
+    }
+
+    private static boolean isUpToDate(Wagon wagon, String path, File file, TransferManifest.Entry entry)
+            throws WagonException, IOException {
+        if (entry == null
+                || entry.getState() != TransferManifest.State.DOWNLOADED
+                || !file.isFile()
+                || file.length() != entry.getSize()) {
+            return false;
         }
 
-        return retValue.trim();
+        String remote = TargetChecksums.readChecksumFile(wagon, path + "." + SHA1);
+
+        // Without a checksum we cannot tell whether the file has changed
+        return remote != null && remote.equalsIgnoreCase(entry.getSha1());
     }
 
-    private void scan(Wagon wagon, String basePath, List<String> collected) {
-        try {
-            List<String> files = wagon.getFileList(basePath);
+    /**
+     * @return the name the files of a copy start with. It tells the parts of a plan apart, as they may be unpacked
+     *         in the same target repository at the same time.
+     */
+    private static String baseName(String version, CopyConfiguration configuration) {
+        return configuration.getPlanParts() > 0
+                ? baseName(version, configuration.getPlanPart(), configuration.getPlanParts())
+                : "staging-plugin-" + version;
+    }
+
+    private static String baseName(String version, int part, int parts) {
+        return "staging-plugin-" + version + "-part-" + part + "-of-" + parts;
+    }
+
+    /**
+     * @return the plan to copy, or <code>null</code> if the source repository is to be listed
+     */
+    private static CopyPlan readPlan(CopyConfiguration configuration) throws IOException {
+        int parts = configuration.getPlanParts();
+
+        if (parts > 0 && configuration.getPlan() == null) {
+            throw new IllegalArgumentException("A part of a plan is to be copied, but no plan file is given");
+        }
+
+        if (parts > 0 && (configuration.getPlanPart() < 1 || configuration.getPlanPart() > parts)) {
+            throw new IllegalArgumentException(
+                    "There is no part " + configuration.getPlanPart() + " of a plan in " + parts + " parts");
+        }
+
+        return configuration.getPlan() != null ? CopyPlan.read(configuration.getPlan()) : null;
+    }
+
+    /**
+     * Stops a copy whose thread was interrupted, such as by cancelling the {@link Future} of
+     * {@link #copyAsync(Repository, List, String, CopyConfiguration)}.
+     */
+    private static void checkCancelled() throws TransferFailedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new TransferFailedException("The copy was cancelled");
+        }
+    }
+
+    /**
+     * Deletes the files below <code>dir</code> whose paths are not to be kept.
+     */
+    private void pruneDirectory(File basedir, File dir, Predicate<String> keep) {
+        File[] children = dir.listFiles();
+
+        if (children == null) {
+            return;
+        }
 
-            if (files.isEmpty()) {
-                collected.add(basePath);
+        for (File f : children) {
+            if (f.isDirectory()) {
+                pruneDirectory(basedir, f, keep);
             } else {
-                basePath = basePath + "/";
-                for (String file : files) {
-                    logger.info("Found file in the source repository: " + file);
-                    scan(wagon, basePath + file, collected);
+                String s = f.getAbsolutePath().substring(basedir.getAbsolutePath().length() + 1);
+                s = s.replace('\\', '/');
+
+                if (!keep.test(s)) {
+                    f.delete();
                 }
             }
-        } catch (TransferFailedException e) {
-            throw new RuntimeException(e);
-        } catch (ResourceDoesNotExistException e) {
-            // is thrown when calling getFileList on a file
-            collected.add(basePath);
-        } catch (AuthorizationException e) {
-            throw new RuntimeException(e);
         }
     }
 
+    private static boolean isChecksum(String path) {
+        return path.endsWith("." + MD5) || path.endsWith("." + SHA1);
+    }
+
+    private static boolean isMetadata(String path) {
+        return path.substring(path.lastIndexOf('/') + 1).startsWith(MAVEN_METADATA);
+    }
+
+    protected String encode(byte[] binaryData) {
+        return Checksums.encode(binaryData);
+    }
+
     protected List<String> scanForArtifactPaths(ArtifactRepository repository) {
         try {
-            Wagon wagon = wagonManager.getWagon(repository.getProtocol());
+            WagonPool pool = pool();
             Repository artifactRepository = new Repository(repository.getId(), repository.getUrl());
-            wagon.connect(artifactRepository);
-            List<String> collected = new ArrayList<String>();
-            scan(wagon, "/", collected);
-            wagon.disconnect();
+            Wagon wagon = pool.acquire(artifactRepository);
+            List<String> collected = Collections.synchronizedList(new ArrayList<String>());
+            new RepositoryScanner(pool, artifactRepository, 1, ScanFilter.ALL, logger)
+                    .scan(wagon, "", collected::add);
+            pool.release(wagon);
 
             return collected;
 
-        } catch (UnsupportedProtocolException e) {
-            throw new RuntimeException(e);
-        } catch (ConnectionException e) {
-            throw new RuntimeException(e);
-        } catch (AuthenticationException e) {
+        } catch (WagonException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return the connection pool, keeping unused connections as long as the configuration asks for
+     */
+    private synchronized WagonPool pool(CopyConfiguration configuration) {
+        long idleTimeout = TimeUnit.SECONDS.toMillis(configuration.getConnectionIdleTimeout());
+
+        if (pool == null) {
+            pool = new WagonPool(wagonManager, idleTimeout, logger);
+        } else {
+            pool.setIdleTimeout(idleTimeout);
+        }
+
+        return pool;
+    }
+
+    /**
+     * @return the connection pool, as the last copy left it
+     */
+    private synchronized WagonPool pool() {
+        return pool != null ? pool : pool(new CopyConfiguration());
+    }
+
+    /**
+     * Disconnects the unused connections, and stops the thread that drops them after the idle timeout.
+     */
+    @Override
+    public synchronized void dispose() {
+        // The copies still running are cancelled
+        if (copies != null) {
+            copies.shutdownNow();
+        }
+
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
     public void enableLogging(Logger logger) {
         this.logger = logger;
     }
+
+    /**
+     * Merges the staged metadata with the metadata of the target repository, every staged metadata file as soon
+     * as it is handed over. Every worker merges with its own connection to the target.
+     */
+    private final class MetadataMerge {
+        private final MetadataCache metadataCache;
+
+        private final MetadataMerger merger;
+
+        private final ParallelDownloader metadataDownloader;
+
+        private final CopyReport.Phase metadataPhase;
+
+        private final long metadataStart;
+
+        /**
+         * Starts the workers, which connect to the target repository right away.
+         *
+         * @param targetWagon a Wagon connected to the target repository to be used by the first worker, or
+         *            <code>null</code> if every worker should open its own connection
+         * @param basedir the work directory holding the staged metadata
+         */
+        private MetadataMerge(
+                WagonPool pool,
+                Wagon targetWagon,
+                Repository targetRepository,
+                File basedir,
+                CopyConfiguration configuration,
+                CopyReport report) {
+            metadataCache = configuration.getMetadataCache() != null
+                    ? new MetadataCache(configuration.getMetadataCache(), targetRepository.getUrl())
+                    : null;
+
+            merger = new MetadataMerger(basedir, configuration.getChecksumAlgorithms(), metadataCache);
+
+            metadataDownloader =
+                    new ParallelDownloader(pool, targetRepository, configuration.getMetadataThreads(), logger);
+
+            metadataPhase = report.phase("metadata");
+
+            schedule(metadataDownloader, configuration, metadataPhase);
+
+            metadataStart = metadataPhase.start();
+
+            metadataDownloader.start(targetWagon, merger.sink());
+        }
+
+        /**
+         * Merges a staged file if it is a metadata file. It must be present in the work directory. May be called
+         * from any thread.
+         *
+         * @param path the path of the staged file
+         */
+        private void submit(String path) {
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+
+            if (path.endsWith(MAVEN_METADATA)) {
+                metadataDownloader.submit(path);
+            }
+        }
+
+        /**
+         * Waits for all metadata files handed over to be merged. No more staged files may be downloaded then.
+         *
+         * @throws IOException if one or more metadata files could not be merged
+         */
+        private void finish() throws WagonException, IOException {
+            metadataDownloader.finish();
+
+            metadataPhase.stop(metadataStart);
+
+            if (metadataCache != null) {
+                logger.info(
+                        "Took " + merger.getCacheHits() + " metadata file(s) of the target repository from the cache.");
+            }
+
+            merger.removeReplacedChecksums();
+
+            merger.checkFailures(logger);
+        }
+
+        /**
+         * Caches the merged metadata, now that the target repository holds it.
+         */
+        private void published() throws IOException {
+            if (metadataCache != null) {
+                merger.cacheMerged();
+            }
+        }
+
+        private void cancel() {
+            metadataDownloader.cancel();
+        }
+    }
+
+    /**
+     * What the target repositories of a copy to several of them share.
+     */
+    private static final class Staged {
+        /**
+         * The work directory holding the downloaded files
+         */
+        private final File basedir;
+
+        /**
+         * The paths of the staged metadata files, merged for every target separately
+         */
+        private final List<String> metadata = new ArrayList<>();
+
+        /**
+         * The archives holding the staged files but the metadata, empty if no target can unpack them
+         */
+        private final List<File> archives = new ArrayList<>();
+
+        /**
+         * The commands renaming the in-process directories of the archives
+         */
+        private final List<String> moveCommands = new ArrayList<>();
+
+        /**
+         * The directories holding the entries of the archives
+         */
+        private final List<String> directories = new ArrayList<>();
+
+        /**
+         * The SHA-1 checksums of the entries of the archives, keyed by entry name, to verify the unpacked files
+         * against
+         */
+        private Map<String, String> sha1s = Collections.emptyMap();
+
+        private Staged(File basedir) {
+            this.basedir = basedir;
+        }
+    }
 }
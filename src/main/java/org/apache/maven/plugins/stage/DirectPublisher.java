@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.events.TransferListener;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+
+import static org.apache.maven.plugins.stage.RepositoryCopier.IN_PROCESS_MARKER;
+import static org.apache.maven.plugins.stage.RepositoryCopier.MAVEN_METADATA;
+
+/**
+ * Publishes the work directory to a target repository file by file, for targets whose Wagon cannot execute
+ * commands and so cannot unpack an archive. The files are uploaded concurrently, every worker with its own
+ * connection, and the metadata is uploaded last so that Maven does not see the new versions before all of their
+ * files are in place.
+ * <p>
+ * For a <code>file:</code> target the version directories are uploaded marked as in-process, as in the archive,
+ * and renamed into place before the metadata is uploaded.
+ * </p>
+ */
+class DirectPublisher {
+    private final WagonPool pool;
+
+    private final Repository repository;
+
+    private final String version;
+
+    private final int threads;
+
+    private final Logger logger;
+
+    private final List<String> generatedAlgorithms = new ArrayList<>();
+
+    private final ThreadLocal<Checksums> checksums;
+
+    private final Map<String, Exception> failures = new ConcurrentSkipListMap<>();
+
+    private final List<TransferListener> listeners = new ArrayList<>();
+
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    private Runnable onRetry = () -> {};
+
+    private boolean adaptive;
+
+    /**
+     * @param pool provides the connections of the workers
+     * @param repository the target repository
+     * @param version the version being staged
+     * @param algorithms the checksums to generate for files that come without them
+     * @param threads the number of files to upload at once
+     * @param logger the logger
+     */
+    DirectPublisher(
+            WagonPool pool,
+            Repository repository,
+            String version,
+            Collection<String> algorithms,
+            int threads,
+            Logger logger) {
+        this.pool = pool;
+        this.repository = repository;
+        this.version = version;
+        this.threads = threads;
+        this.logger = logger;
+
+        generatedAlgorithms.addAll(algorithms);
+        generatedAlgorithms.remove(RepositoryCopier.MD5);
+        generatedAlgorithms.remove(RepositoryCopier.SHA1);
+
+        this.checksums = ThreadLocal.withInitial(() -> new Checksums(generatedAlgorithms));
+    }
+
+    /**
+     * Adds a listener to the Wagons uploading the files.
+     *
+     * @param listener the listener, called from the worker threads
+     */
+    void addTransferListener(TransferListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Tries failed uploads again, see {@link ParallelDownloader#setRetryPolicy(RetryPolicy, Runnable)}.
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy, Runnable onRetry) {
+        this.retryPolicy = retryPolicy;
+        this.onRetry = onRetry;
+    }
+
+    /**
+     * Adapts the number of uploads in flight, see {@link ParallelDownloader#adaptConcurrency()}.
+     */
+    void adaptConcurrency() {
+        adaptive = true;
+    }
+
+    /**
+     * Uploads the work directory.
+     *
+     * @param wagon a Wagon connected to the target repository, used by the first worker
+     * @param basedir the work directory, holding the staged files and the merged metadata
+     * @param excluded the paths of the files to leave out, as the target holds them already
+     * @throws WagonException if one or more files could not be uploaded. The metadata is not uploaded then.
+     */
+    void publish(Wagon wagon, File basedir, PathSet excluded) throws WagonException, IOException {
+        publish(wagon, basedir, basedir, excluded);
+    }
+
+    /**
+     * Uploads the staged files of the work directory, and the metadata of another directory. The checksum files
+     * generated are written to the other directory too, so that the work directory is only read from.
+     *
+     * @param wagon a Wagon connected to the target repository, used by the first worker
+     * @param basedir the work directory, holding the staged files
+     * @param metadataDirectory the directory holding the merged metadata, which may be the work directory
+     * @param excluded the paths of the files to leave out, as the target holds them already
+     * @throws WagonException if one or more files could not be uploaded. The metadata is not uploaded then.
+     */
+    void publish(Wagon wagon, File basedir, File metadataDirectory, PathSet excluded)
+            throws WagonException, IOException {
+        try (PathSet files = list(basedir, excluded);
+                PathSet content = new PathSet()) {
+            List<String> metadata = new ArrayList<>();
+
+            for (String s : files) {
+                if (!isMetadata(s)) {
+                    content.add(s);
+                } else if (metadataDirectory.equals(basedir)) {
+                    metadata.add(s);
+                }
+            }
+
+            if (!metadataDirectory.equals(basedir)) {
+                try (PathSet merged = list(metadataDirectory, excluded)) {
+                    for (String s : merged) {
+                        if (isMetadata(s)) {
+                            metadata.add(s);
+                        }
+                    }
+                }
+            }
+
+            File local = "file".equals(repository.getProtocol()) ? new File(repository.getBasedir()) : null;
+
+            logger.info("Uploading " + content.size() + " file(s) to the target repository.");
+
+            upload(wagon, content, (w, path) -> {
+                String target = local != null ? stage(path) : path;
+
+                put(w, basedir, path, target);
+
+                generateChecksums(w, basedir, metadataDirectory, path, target, files);
+            });
+
+            if (local != null) {
+                logger.info("Moving the uploaded version directories into place.");
+
+                for (String directory : stagedDirectories(content)) {
+                    moveIntoPlace(new File(local, directory + IN_PROCESS_MARKER), new File(local, directory));
+                }
+            }
+
+            logger.info("Uploading " + metadata.size() + " metadata file(s) to the target repository.");
+
+            // Merged metadata is marked as in-process in the work directory
+            upload(wagon, metadata, (w, path) -> put(
+                    w,
+                    metadataDirectory,
+                    path,
+                    path.endsWith(IN_PROCESS_MARKER)
+                            ? path.substring(0, path.length() - IN_PROCESS_MARKER.length())
+                            : path));
+        }
+    }
+
+    /**
+     * @return the paths of the files below a directory, but for the excluded ones
+     */
+    private static PathSet list(File directory, PathSet excluded) throws IOException {
+        PathSet files = new PathSet();
+
+        try (Stream<Path> walk = Files.walk(directory.toPath())) {
+            walk.filter(Files::isRegularFile)
+                    .map(p -> directory.toPath().relativize(p).toString().replace('\\', '/'))
+                    .filter(s -> !s.contains(".svn") && !excluded.contains(s))
+                    .forEach(files::add);
+        }
+
+        return files;
+    }
+
+    private static boolean isMetadata(String path) {
+        return path.substring(path.lastIndexOf('/') + 1).startsWith(MAVEN_METADATA);
+    }
+
+    private void upload(Wagon wagon, Iterable<String> paths, ParallelDownloader.Sink sink)
+            throws WagonException {
+        ParallelDownloader uploader = new ParallelDownloader(pool, repository, threads, logger);
+
+        for (TransferListener listener : listeners) {
+            uploader.addTransferListener(listener);
+        }
+
+        uploader.setRetryPolicy(retryPolicy, onRetry);
+
+        if (adaptive) {
+            uploader.adaptConcurrency();
+        }
+
+        // Failures are collected here, so that they are not reported as downloads, but for those the uploader
+        // tries again
+        uploader.start(wagon, (w, path) -> {
+            try {
+                sink.receive(w, path);
+            } catch (WagonException | IOException e) {
+                if (RetryPolicy.isTransient(e)) {
+                    throw e;
+                }
+
+                failures.put(path, e);
+            }
+        });
+
+        for (String path : paths) {
+            uploader.submit(path);
+        }
+
+        uploader.finish();
+
+        if (!failures.isEmpty()) {
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                logger.error("Failed to upload " + failure.getKey() + ": " + failure.getValue().getMessage());
+            }
+
+            throw new TransferFailedException(
+                    failures.size() + " file(s) could not be uploaded to " + repository.getUrl(),
+                    failures.values().iterator().next());
+        }
+    }
+
+    private void put(Wagon wagon, File basedir, String path, String target) throws WagonException {
+        logger.debug("Uploading file to the target repository: " + target);
+
+        wagon.put(new File(basedir, path), target);
+    }
+
+    /**
+     * Uploads the checksum files of the configured algorithms that the staged repository does not have for a file.
+     *
+     * @param checksumDirectory the directory to write the checksum files to before they are uploaded
+     */
+    private void generateChecksums(
+            Wagon wagon, File basedir, File checksumDirectory, String path, String target, PathSet files)
+            throws WagonException, IOException {
+        if (generatedAlgorithms.isEmpty() || isChecksum(path)) {
+            return;
+        }
+
+        Map<String, String> digests = null;
+
+        for (String algorithm : generatedAlgorithms) {
+            String checksumPath = path + "." + algorithm;
+
+            if (files.contains(checksumPath)) {
+                continue;
+            }
+
+            if (digests == null) {
+                digests = checksums.get().digest(new File(basedir, path));
+            }
+
+            FileUtils.writeStringToFile(
+                    new File(checksumDirectory, checksumPath), digests.get(algorithm), StandardCharsets.US_ASCII);
+
+            put(wagon, checksumDirectory, checksumPath, target + "." + algorithm);
+        }
+    }
+
+    private static boolean isChecksum(String path) {
+        return path.endsWith("." + RepositoryCopier.MD5)
+                || path.endsWith("." + RepositoryCopier.SHA1)
+                || path.endsWith("." + RepositoryCopier.SHA256)
+                || path.endsWith("." + RepositoryCopier.SHA512);
+    }
+
+    private String stage(String path) {
+        return path.replace("/" + version + "/", "/" + version + IN_PROCESS_MARKER + "/");
+    }
+
+    private Set<String> stagedDirectories(Iterable<String> paths) {
+        Set<String> directories = new TreeSet<>();
+
+        for (String path : paths) {
+            int idx = path.indexOf("/" + version + "/");
+
+            if (idx > 0) {
+                directories.add(path.substring(0, idx + version.length() + 1));
+            }
+        }
+
+        return directories;
+    }
+
+    /**
+     * Renames an in-process version directory. If the version directory exists already, the files are moved
+     * into it one by one.
+     */
+    private static void moveIntoPlace(File staged, File directory) throws IOException {
+        if (!directory.exists()) {
+            try {
+                Files.move(staged.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staged.toPath(), directory.toPath());
+            }
+
+            return;
+        }
+
+        List<Path> children;
+
+        try (Stream<Path> walk = Files.walk(staged.toPath())) {
+            children = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        for (Path child : children) {
+            Path target = directory.toPath().resolve(staged.toPath().relativize(child));
+
+            Files.createDirectories(target.getParent());
+
+            Files.move(child, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        FileUtils.deleteDirectory(staged);
+    }
+}
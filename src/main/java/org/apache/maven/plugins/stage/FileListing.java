@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The files of a repository obtained in one go, from a remote <code>find</code> or an index file, arranged by
+ * directory so that a {@link ScanFilter} can be applied as if the directories had been listed one by one.
+ * <p>
+ * Every line holds a path relative to the repository root, optionally preceded by the size of the file and its
+ * modification time, as printed by <code>find . -type f -printf '%s %T@ %P\n'</code>. A line ending with a
+ * <code>/</code> holds a directory, which is listed even when none of its files are.
+ * </p>
+ * <p>
+ * The files are handed out largest first, so that the transfers that take longest start first instead of holding
+ * up the end of the download.
+ * </p>
+ */
+class FileListing {
+    /**
+     * The entries of every directory, keyed by its path without a trailing <code>/</code>. The entries are
+     * named like the ones of a Wagon file list: directories end with a <code>/</code>.
+     */
+    private final Map<String, List<String>> directories = new HashMap<>();
+
+    /**
+     * The sizes of the files listed with their size, keyed by directory and then by name.
+     */
+    private final Map<String, Map<String, Long>> sizes = new HashMap<>();
+
+    private int count;
+
+    private long totalSize;
+
+    FileListing() {
+        directories.put("", new ArrayList<>());
+    }
+
+    /**
+     * Reads a listing, skipping the lines that are empty or start with a <code>#</code>.
+     */
+    static FileListing read(BufferedReader reader) throws IOException {
+        FileListing listing = new FileListing();
+
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            listing.addLine(line);
+        }
+
+        return listing;
+    }
+
+    void addLine(String line) {
+        String s = line.trim();
+
+        if (s.isEmpty() || s.startsWith("#")) {
+            return;
+        }
+
+        String[] fields = s.split(" ", 3);
+
+        if (fields.length == 3 && isNumber(fields[0]) && isNumber(fields[1])) {
+            long size = (long) Double.parseDouble(fields[0]);
+
+            totalSize += size;
+
+            add(fields[2], size);
+        } else {
+            add(s, -1);
+        }
+    }
+
+    /**
+     * @param path the path of the file, relative to the repository root, or of a directory ending with a
+     *        <code>/</code>
+     * @param size the size of the file, or <code>-1</code> if unknown
+     */
+    void add(String path, long size) {
+        String s = path.startsWith("./") ? path.substring(2) : path;
+
+        while (s.startsWith("/")) {
+            s = s.substring(1);
+        }
+
+        if (s.isEmpty() || s.endsWith("/")) {
+            entries(s.isEmpty() ? "" : s.substring(0, s.length() - 1));
+
+            return;
+        }
+
+        int idx = s.lastIndexOf('/');
+
+        String directory = idx < 0 ? "" : s.substring(0, idx);
+
+        String name = s.substring(idx + 1);
+
+        entries(directory).add(name);
+
+        if (size >= 0) {
+            sizes.computeIfAbsent(directory, d -> new HashMap<>()).put(name, size);
+        }
+
+        count++;
+    }
+
+    /**
+     * @return the number of files
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the total size of the files, counting only those listed with their size
+     */
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Hands the files below <code>basePath</code> that the filter selects to the consumer, largest first. Files
+     * listed without their size come last, in the order they were found.
+     */
+    void scan(String basePath, ScanFilter filter, Consumer<String> consumer) {
+        List<Map.Entry<String, Long>> selected = new ArrayList<>();
+
+        Deque<String> pending = new ArrayDeque<>();
+
+        pending.push(basePath.endsWith("/") ? basePath.substring(0, basePath.length() - 1) : basePath);
+
+        while (!pending.isEmpty()) {
+            String directory = pending.pop();
+
+            List<String> entries = directories.get(directory);
+
+            if (entries == null) {
+                continue;
+            }
+
+            String prefix = directory.isEmpty() ? "" : directory + "/";
+
+            Map<String, Long> directorySizes = sizes.getOrDefault(directory, Collections.emptyMap());
+
+            for (String entry : filter.select(directory, entries)) {
+                if (entry.equals(".svn/")) {
+                    continue;
+                }
+
+                if (entry.endsWith("/")) {
+                    pending.push(prefix + entry.substring(0, entry.length() - 1));
+                } else {
+                    selected.add(new AbstractMap.SimpleImmutableEntry<>(
+                            prefix + entry, directorySizes.getOrDefault(entry, -1L)));
+                }
+            }
+        }
+
+        // The sort is stable
+        selected.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        for (Map.Entry<String, Long> file : selected) {
+            consumer.accept(file.getKey());
+        }
+    }
+
+    private List<String> entries(String directory) {
+        List<String> entries = directories.get(directory);
+
+        if (entries == null) {
+            entries = new ArrayList<>();
+
+            directories.put(directory, entries);
+
+            int idx = directory.lastIndexOf('/');
+
+            entries(idx < 0 ? "" : directory.substring(0, idx)).add(directory.substring(idx + 1) + "/");
+        }
+
+        return entries;
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.function.Consumer;
+
+import org.apache.maven.wagon.CommandExecutionException;
+import org.apache.maven.wagon.CommandExecutor;
+import org.apache.maven.wagon.Streams;
+import org.apache.maven.wagon.Wagon;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Lists a repository with a single <code>find</code> on the machine holding it, instead of a request per
+ * directory. Only available when the Wagon can execute commands and the machine has a <code>find</code> that
+ * understands <code>-printf</code>, as GNU find does.
+ * <p>
+ * When the filter is scoped to a version, <code>find</code> only prints the files below a directory named after
+ * the version and the metadata files, along with all directories so that the filter can tell artifacts from
+ * groups. The filter is then applied to the listing as it is to the directories of a scan.
+ * </p>
+ * <p>
+ * The output is only used when the command ran to the end, which is told by a marker echoed after it, so that a
+ * failed listing leaves nothing behind for the next strategy. It is read line by line into the listing, without
+ * copying it.
+ * </p>
+ */
+class FindListing implements ListingStrategy {
+    private static final String END = "--- end of listing ---";
+
+    private final ScanFilter filter;
+
+    private final Logger logger;
+
+    FindListing(ScanFilter filter, Logger logger) {
+        this.filter = filter;
+        this.logger = logger;
+    }
+
+    @Override
+    public boolean list(Wagon wagon, String basePath, Consumer<String> consumer) {
+        if (!(wagon instanceof CommandExecutor)) {
+            return false;
+        }
+
+        String basedir = wagon.getRepository().getBasedir();
+
+        // Symbolic links are followed, as a Wagon file list does
+        String command = "cd " + ShellCommands.quote(basedir) + " && find -L . " + predicate() + " && echo "
+                + ShellCommands.quote(END);
+
+        Streams streams;
+
+        try {
+            streams = ((CommandExecutor) wagon).executeCommand(command, true);
+        } catch (CommandExecutionException e) {
+            logger.debug("Cannot list the repository with find: " + e.getMessage());
+
+            return false;
+        }
+
+        String out = streams.getOut() != null ? streams.getOut() : "";
+
+        if (out.lastIndexOf(END) < 0) {
+            logger.debug("Cannot list the repository with find: " + out + streams.getErr());
+
+            return false;
+        }
+
+        FileListing listing = new FileListing();
+
+        try (BufferedReader reader = new BufferedReader(new StringReader(out))) {
+            String line;
+
+            while ((line = reader.readLine()) != null && !line.equals(END)) {
+                listing.addLine(line);
+            }
+        } catch (IOException e) {
+            // Cannot happen when reading from a string
+            throw new IllegalStateException(e);
+        }
+
+        logger.info("Listed " + listing.getCount() + " file(s) of the repository with find.");
+
+        listing.scan(basePath, filter, consumer);
+
+        return true;
+    }
+
+    /**
+     * @return the expression of <code>find</code> printing the files the filter may select and, when scoped to a
+     *         version, the directories
+     */
+    private String predicate() {
+        String version = filter.getVersion();
+
+        if (version == null) {
+            return "-type f -printf '%s %T@ %P\\n'";
+        }
+
+        // A directory is printed with a trailing /, which the listing reads as a directory
+        return "-type d -printf '%P/\\n' -o -type f \\( -path " + ShellCommands.quote("*/" + glob(version) + "/*")
+                + " -o -name '" + RepositoryCopier.MAVEN_METADATA + "*' \\) -printf '%s %T@ %P\\n'";
+    }
+
+    /**
+     * @return the pattern of <code>find</code> matching the name, its wildcards escaped
+     */
+    private static String glob(String name) {
+        return name.replaceAll("([*?\\[\\\\])", "\\\\$1");
+    }
+}
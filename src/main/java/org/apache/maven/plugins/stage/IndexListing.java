@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.Consumer;
+
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Lists a repository from an index file that the repository provides, downloaded with a single request. The index
+ * holds a line per file, in the format read by {@link FileListing}, such as the output of
+ * <code>find . -type f -printf '%s %T@ %P\n'</code> run in the repository.
+ * <p>
+ * The index must be up to date: files that it does not list are not copied.
+ * </p>
+ */
+class IndexListing implements ListingStrategy {
+    private final String index;
+
+    private final ScanFilter filter;
+
+    private final Logger logger;
+
+    /**
+     * @param index the path of the index file, relative to the repository root
+     * @param filter decides which files are handed to the consumer
+     * @param logger the logger
+     */
+    IndexListing(String index, ScanFilter filter, Logger logger) {
+        this.index = index;
+        this.filter = filter;
+        this.logger = logger;
+    }
+
+    @Override
+    public boolean list(Wagon wagon, String basePath, Consumer<String> consumer) throws WagonException {
+        File file;
+
+        try {
+            file = File.createTempFile("staging-plugin-", "-index.txt");
+        } catch (IOException e) {
+            throw new TransferFailedException("Cannot create a temporary file for the index " + index, e);
+        }
+
+        try {
+            try {
+                wagon.get(index, file);
+            } catch (ResourceDoesNotExistException e) {
+                logger.info("The repository has no index " + index + ", listing it otherwise.");
+
+                return false;
+            }
+
+            FileListing listing;
+
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                listing = FileListing.read(reader);
+            } catch (IOException e) {
+                throw new TransferFailedException("Cannot read the index " + index, e);
+            }
+
+            logger.info("Listed " + listing.getCount() + " file(s) of the repository from " + index + ".");
+
+            listing.scan(basePath, filter, path -> {
+                if (!path.equals(index)) {
+                    consumer.accept(path);
+                }
+            });
+
+            return true;
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.util.function.Consumer;
+
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+
+/**
+ * A way of listing the files of a source repository. The copier tries its strategies in turn, and the first one
+ * that is available for the repository lists it.
+ */
+interface ListingStrategy {
+    /**
+     * Lists the files below <code>basePath</code>. A strategy that is not available for the repository returns
+     * <code>false</code> without handing any file to the consumer, so that the next strategy can be tried.
+     *
+     * @param wagon a Wagon connected to the repository
+     * @param basePath the directory to start from, <code>""</code> for the repository root
+     * @param consumer receives the path of every file found, relative to the repository root
+     * @return whether the repository was listed
+     * @throws WagonException if the repository could not be listed
+     */
+    boolean list(Wagon wagon, String basePath, Consumer<String> consumer) throws WagonException;
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.maven.plugins.stage.RepositoryCopier.MAVEN_METADATA;
+
+/**
+ * A cache on disk of the metadata files of a target repository, so that a metadata file that has not changed on
+ * the target since the last run does not have to be downloaded again: only its <code>.sha1</code> is.
+ * <p>
+ * Entries are named after the SHA-1 of their content and never change once written, so several runs, also of
+ * several processes, can share the cache. Writing an entry removes the other entries of the same file that have
+ * not been written or read for {@value #GRACE_PERIOD_HOURS} hours, so that a process still using one of them, as
+ * it copied to the target repository before the file changed, is not left without it.
+ * </p>
+ */
+class MetadataCache {
+    /**
+     * How long an entry that is neither written nor read is kept once another entry of the same file is written.
+     */
+    static final int GRACE_PERIOD_HOURS = 24;
+
+    private static final String EXTENSION = ".xml";
+
+    private final File directory;
+
+    /**
+     * @param root the directory of the cache, shared by all repositories
+     * @param repositoryUrl the URL of the target repository
+     */
+    MetadataCache(File root, String repositoryUrl) {
+        Checksums checksums = new Checksums(Collections.singletonList(RepositoryCopier.SHA1));
+
+        byte[] url = repositoryUrl.getBytes(StandardCharsets.UTF_8);
+
+        checksums.update(url, 0, url.length);
+
+        this.directory = new File(root, checksums.digest().get(RepositoryCopier.SHA1));
+    }
+
+    /**
+     * @param path the path of a metadata file in the repository
+     * @param sha1 the SHA-1 of the metadata file in the repository
+     * @return the cached file with that content, or <code>null</code> if it is not in the cache
+     */
+    File get(String path, String sha1) {
+        File file = entry(path, sha1);
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // Keeps it from being removed while in use
+        file.setLastModified(System.currentTimeMillis());
+
+        return file;
+    }
+
+    /**
+     * Adds a file to the cache.
+     *
+     * @param path the path of the metadata file in the repository
+     * @param file the content of the metadata file
+     * @param sha1 the SHA-1 of the content
+     */
+    void put(String path, File file, String sha1) throws IOException {
+        File entry = entry(path, sha1);
+
+        if (entry.isFile()) {
+            return;
+        }
+
+        File dir = entry.getParentFile();
+
+        Files.createDirectories(dir.toPath());
+
+        File tmp = File.createTempFile(MAVEN_METADATA, ".tmp", dir);
+
+        try {
+            Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            try {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+
+        String prefix = prefix(path);
+
+        long expired = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(GRACE_PERIOD_HOURS);
+
+        File[] entries = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(EXTENSION));
+
+        for (File other : entries != null ? entries : new File[0]) {
+            if (!other.equals(entry) && other.lastModified() < expired) {
+                other.delete();
+            }
+        }
+    }
+
+    private File entry(String path, String sha1) {
+        int idx = path.lastIndexOf('/');
+
+        File dir = idx < 0 ? directory : new File(directory, path.substring(0, idx));
+
+        return new File(dir, prefix(path) + sha1 + EXTENSION);
+    }
+
+    private static String prefix(String path) {
+        return path.substring(path.lastIndexOf('/') + 1) + "-";
+    }
+}
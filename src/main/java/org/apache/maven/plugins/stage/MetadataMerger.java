@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+import static org.apache.maven.plugins.stage.RepositoryCopier.IN_PROCESS_MARKER;
+import static org.apache.maven.plugins.stage.RepositoryCopier.MAVEN_METADATA;
+
+/**
+ * Merges the metadata of the work directory with the metadata of the target repository. The merged metadata and
+ * its checksums are written next to the staged metadata, marked as in-process.
+ * <p>
+ * The merge is done by the {@link #sink() sink} of a {@link ParallelDownloader} connected to the target
+ * repository, so several metadata files can be merged at once. A file that cannot be merged does not stop the
+ * others, the failures are reported together by {@link #checkFailures(Logger)}.
+ * </p>
+ * <p>
+ * A staged metadata file can be merged as soon as it is downloaded, while the rest of the staged repository is
+ * still being downloaded. Its checksum files may then still be on their way, so the ones replaced by the merge
+ * are only removed by {@link #removeReplacedChecksums()} once all downloads are done.
+ * </p>
+ */
+class MetadataMerger {
+    private final ThreadLocal<MetadataXpp3Reader> reader = ThreadLocal.withInitial(MetadataXpp3Reader::new);
+
+    private final ThreadLocal<MetadataXpp3Writer> writer = ThreadLocal.withInitial(MetadataXpp3Writer::new);
+
+    private final File basedir;
+
+    private final Collection<String> algorithms;
+
+    private final MetadataCache cache;
+
+    private final Map<String, Exception> failures = new ConcurrentSkipListMap<>();
+
+    private final AtomicInteger cacheHits = new AtomicInteger();
+
+    private final Set<String> merged = new ConcurrentSkipListSet<>();
+
+    /**
+     * The SHA-1 of every merged metadata file, to cache once it is published
+     */
+    private final Map<String, String> mergedSha1s = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param basedir the work directory holding the staged metadata
+     * @param algorithms the checksums to generate for the merged metadata
+     */
+    MetadataMerger(File basedir, Collection<String> algorithms) {
+        this(basedir, algorithms, null);
+    }
+
+    /**
+     * @param basedir the work directory holding the staged metadata
+     * @param algorithms the checksums to generate for the merged metadata
+     * @param cache the metadata of the target repository from previous runs, or <code>null</code> for none
+     */
+    MetadataMerger(File basedir, Collection<String> algorithms, MetadataCache cache) {
+        this.basedir = basedir;
+        this.algorithms = algorithms;
+        this.cache = cache;
+    }
+
+    /**
+     * @return a sink downloading the metadata of the target repository and merging it into the staged metadata
+     */
+    ParallelDownloader.Sink sink() {
+        return (wagon, path) -> {
+            File emf = new File(basedir, path + IN_PROCESS_MARKER);
+
+            try {
+                if (!fetch(wagon, path, emf)) {
+                    // We don't have an equivalent on the targetRepositoryUrl side because we have something
+                    // new on the sourceRepositoryUrl side so just skip the metadata merging.
+
+                    return;
+                }
+            } catch (WagonException | IOException e) {
+                if (RetryPolicy.isTransient(e)) {
+                    // Left to the downloader to try again
+                    throw e;
+                }
+
+                failures.put(path, e);
+
+                return;
+            }
+
+            try {
+                merge(emf);
+
+                merged.add(path);
+
+                if (cache != null) {
+                    mergedSha1s.put(path, sha1(emf));
+                }
+            } catch (XmlPullParserException e) {
+                failures.put(path, new IOException("Metadata file is corrupt " + path + " Reason: " + e.getMessage()));
+            } catch (IOException e) {
+                failures.put(path, e);
+            }
+        };
+    }
+
+    /**
+     * Adds the merged metadata to the cache, once it has been published: it is then what the target repository
+     * holds. A copy that fails leaves the cache as it was.
+     */
+    void cacheMerged() throws IOException {
+        for (Map.Entry<String, String> e : mergedSha1s.entrySet()) {
+            File emf = new File(basedir, e.getKey() + IN_PROCESS_MARKER);
+
+            if (emf.isFile()) {
+                cache.put(e.getKey(), emf, e.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the number of metadata files of the target repository that were taken from the cache
+     */
+    int getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Downloads a metadata file of the target repository, or takes it from the cache when its <code>.sha1</code>
+     * matches a cached file.
+     *
+     * @return <code>false</code> if the target repository does not have the file
+     */
+    private boolean fetch(Wagon wagon, String path, File emf) throws WagonException, IOException {
+        String sha1 = null;
+
+        if (cache != null) {
+            File checksum = new File(basedir, path + "." + RepositoryCopier.SHA1 + IN_PROCESS_MARKER);
+
+            try {
+                wagon.get(path + "." + RepositoryCopier.SHA1, checksum);
+
+                sha1 = readChecksum(checksum);
+            } catch (ResourceDoesNotExistException e) {
+                // Without a checksum there is nothing to match the cache against
+            } finally {
+                checksum.delete();
+            }
+
+            File cached = sha1 != null ? cache.get(path, sha1) : null;
+
+            if (cached != null) {
+                FileUtils.copyFile(cached, emf);
+
+                cacheHits.incrementAndGet();
+
+                return true;
+            }
+        }
+
+        try {
+            wagon.get(path, emf);
+        } catch (ResourceDoesNotExistException e) {
+            return false;
+        }
+
+        // A checksum that does not match, as the file changed in between, is not cached
+        if (sha1 != null && sha1.equals(sha1(emf))) {
+            cache.put(path, emf, sha1);
+        }
+
+        return true;
+    }
+
+    private static String readChecksum(File file) throws IOException {
+        String content = FileUtils.readFileToString(file, StandardCharsets.US_ASCII).trim();
+
+        // Some tools write the file name after the checksum
+        int idx = content.indexOf(' ');
+
+        return (idx < 0 ? content : content.substring(0, idx)).toLowerCase();
+    }
+
+    private static String sha1(File file) throws IOException {
+        return new Checksums(Collections.singletonList(RepositoryCopier.SHA1))
+                .digest(file)
+                .get(RepositoryCopier.SHA1);
+    }
+
+    /**
+     * Deletes the staged checksum files of the merged metadata, which the regenerated ones replace.
+     */
+    void removeReplacedChecksums() {
+        for (String path : merged) {
+            for (String algorithm : algorithms) {
+                new File(basedir, path + "." + algorithm).delete();
+            }
+        }
+    }
+
+    /**
+     * Logs every metadata file that could not be merged.
+     *
+     * @param logger the logger to report to
+     * @throws IOException if one or more metadata files could not be merged
+     */
+    void checkFailures(Logger logger) throws IOException {
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            logger.error("Failed to merge " + failure.getKey() + ": " + failure.getValue().getMessage());
+        }
+
+        throw new IOException(
+                failures.size() + " metadata file(s) could not be merged: " + String.join(", ", failures.keySet()),
+                failures.values().iterator().next());
+    }
+
+    private void merge(File existingMetadata) throws IOException, XmlPullParserException {
+        // Existing Metadata in target stage
+
+        Metadata existing;
+
+        try (Reader existingMetadataReader = new FileReader(existingMetadata)) {
+            existing = reader.get().read(existingMetadataReader);
+        }
+
+        // Staged Metadata
+
+        File stagedMetadataFile = new File(existingMetadata.getParentFile(), MAVEN_METADATA);
+
+        Metadata staged;
+
+        try (Reader stagedMetadataReader = new FileReader(stagedMetadataFile)) {
+            staged = reader.get().read(stagedMetadataReader);
+        }
+
+        // Merge
+
+        existing.merge(staged);
+
+        try (Writer w = new FileWriter(existingMetadata)) {
+            writer.get().write(w, existing);
+        }
+
+        // Mark all metadata as in-process and regenerate the checksums as they will be different
+        // after the merger
+
+        Map<String, String> checksums = new Checksums(algorithms).digest(existingMetadata);
+
+        for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+            String extension = "." + checksum.getKey();
+
+            File newChecksum =
+                    new File(existingMetadata.getParentFile(), MAVEN_METADATA + extension + IN_PROCESS_MARKER);
+
+            FileUtils.writeStringToFile(newChecksum, checksum.getValue(), StandardCharsets.US_ASCII);
+        }
+
+        // We have the new merged copy so we're good
+
+        stagedMetadataFile.delete();
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.events.TransferListener;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Downloads files from a repository using a pool of workers. Every worker uses its own Wagon connection,
+ * as Wagon instances are not safe for concurrent use. A downloader is used for a single run.
+ * <p>
+ * What a worker does with a path is up to the {@link Sink}, which may as well upload it.
+ * </p>
+ */
+class ParallelDownloader {
+    /**
+     * Tells a worker that there are no more paths to download. Compared by identity.
+     */
+    private static final String END = new String("");
+
+    private final WagonPool pool;
+
+    private final Repository repository;
+
+    private final int threads;
+
+    private final Logger logger;
+
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+    private PathSet submitted = new PathSet();
+
+    private final Map<String, Exception> failures = new ConcurrentSkipListMap<>();
+
+    private final List<Future<?>> futures = new ArrayList<>();
+
+    private final List<TransferListener> listeners = new ArrayList<>();
+
+    private ExecutorService executor;
+
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    private Runnable onRetry = () -> {};
+
+    private AdaptiveLimit limit;
+
+    /**
+     * Receives the files fetched by the workers. Called concurrently from the worker threads.
+     */
+    interface Sink {
+        /**
+         * @param wagon the worker's Wagon, connected to the repository
+         * @param path the path of the file to fetch, relative to the repository root
+         */
+        void receive(Wagon wagon, String path) throws WagonException, IOException;
+    }
+
+    /**
+     * @param basedir the directory to download the files to
+     * @return a sink downloading the files below the given directory
+     */
+    static Sink toDirectory(File basedir) {
+        return (wagon, path) -> {
+            File f = new File(basedir, path);
+
+            FileUtils.forceMkdirParent(f);
+
+            // The file left by a previous run may be linked to a local source, which must not be written through
+            Files.deleteIfExists(f.toPath());
+
+            wagon.get(path, f);
+        };
+    }
+
+    /**
+     * @param source the root of a repository on this machine
+     * @param basedir the directory to put the files in
+     * @return a sink putting the files of the local repository below the given directory without passing them
+     *         through the Wagon: they are hard linked, or copied by the kernel where links are not possible
+     */
+    static Sink linkToDirectory(File source, File basedir) {
+        return (wagon, path) -> {
+            File f = new File(basedir, path);
+
+            FileUtils.forceMkdirParent(f);
+
+            try {
+                link(new File(source, path).toPath(), f.toPath());
+            } catch (NoSuchFileException e) {
+                throw new ResourceDoesNotExistException("File: " + new File(source, path) + " does not exist", e);
+            }
+        };
+    }
+
+    private static void link(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+
+        try {
+            Files.createLink(target, source);
+
+            return;
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // Another file system than the work directory, or one without hard links
+        }
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out =
+                        FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            long transferred;
+
+            // Stops short if the file shrinks meanwhile
+            while (position < size && (transferred = in.transferTo(position, size - position, out)) > 0) {
+                position += transferred;
+            }
+        }
+    }
+
+    ParallelDownloader(WagonManager wagonManager, Repository repository, int threads, Logger logger) {
+        this(new WagonPool(wagonManager), repository, threads, logger);
+    }
+
+    /**
+     * @param pool provides the connections of the workers
+     */
+    ParallelDownloader(WagonPool pool, Repository repository, int threads, Logger logger) {
+        this.pool = pool;
+        this.repository = repository;
+        this.threads = Math.max(1, threads);
+        this.logger = logger;
+    }
+
+    /**
+     * Adds a listener to the Wagon of every worker. Must be called before {@link #start(Wagon, Sink)}.
+     *
+     * @param listener the listener, called from the worker threads
+     */
+    void addTransferListener(TransferListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Tries failed transfers again, each time over a new connection. Must be called before
+     * {@link #start(Wagon, Sink)}.
+     *
+     * @param retryPolicy decides which transfers are tried again and when
+     * @param onRetry called from the worker threads every time a transfer is tried again
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy, Runnable onRetry) {
+        this.retryPolicy = retryPolicy;
+        this.onRetry = onRetry;
+    }
+
+    /**
+     * Lowers the number of transfers in flight below the number of workers while the repository is slow to respond
+     * or fails transfers, see {@link AdaptiveLimit}. Must be called before {@link #start(Wagon, Sink)}.
+     */
+    void adaptConcurrency() {
+        limit = new AdaptiveLimit(repository.getUrl(), threads, logger);
+    }
+
+    /**
+     * Collects the submitted paths in a {@link PathSet} that writes them to disk once they take more than
+     * <code>memoryLimit</code> bytes. Must be called before {@link #start(Wagon, Sink)}.
+     *
+     * @param directory the directory to write the paths to
+     * @param memoryLimit the size in bytes of the paths kept in memory
+     */
+    void spillPaths(File directory, long memoryLimit) {
+        submitted = new PathSet(directory, memoryLimit);
+    }
+
+    /**
+     * Downloads the given paths below <code>basedir</code>. The given, already connected, Wagon is used by the
+     * first worker so that a single threaded download does not open an additional connection.
+     *
+     * @param wagon a Wagon connected to the repository
+     * @param paths the paths to download, relative to the repository root
+     * @param basedir the directory to download the files to
+     * @return the downloaded paths in sorted order
+     * @throws WagonException if a worker could not connect or one or more files could not be downloaded
+     */
+    List<String> download(Wagon wagon, Collection<String> paths, File basedir) throws WagonException {
+        start(wagon, toDirectory(basedir));
+
+        for (String path : new TreeSet<>(paths)) {
+            submit(path);
+        }
+
+        List<String> downloaded = new ArrayList<>();
+
+        try (PathSet files = finish()) {
+            files.forEach(downloaded::add);
+        }
+
+        return downloaded;
+    }
+
+    /**
+     * Starts the workers. Paths are then handed to them with {@link #submit(String)} as they become known, and
+     * {@link #finish()} waits for all of them to be downloaded.
+     *
+     * @param wagon a Wagon connected to the repository to be used by the first worker, or <code>null</code> if
+     *            every worker should open its own connection
+     * @param sink receives the files
+     */
+    void start(Wagon wagon, Sink sink) {
+        executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            Wagon workerWagon = i == 0 ? wagon : null;
+
+            futures.add(executor.submit(() -> {
+                new Worker(workerWagon).work(sink);
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * Queues a path for download. May be called from any thread.
+     *
+     * @param path the path to download, relative to the repository root
+     */
+    void submit(String path) {
+        if (path.contains(".svn")) {
+            return;
+        }
+
+        submitted.add(path);
+
+        queue.add(path);
+    }
+
+    /**
+     * Waits for all submitted paths to be downloaded.
+     *
+     * @return the downloaded paths, to be closed by the caller
+     * @throws WagonException if no worker could connect or one or more files could not be downloaded
+     */
+    PathSet finish() throws WagonException {
+        for (int i = 0; i < threads; i++) {
+            queue.add(END);
+        }
+
+        try {
+            WagonException connectFailure = null;
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (connectFailure == null && e.getCause() instanceof WagonException) {
+                        connectFailure = (WagonException) e.getCause();
+                    } else if (connectFailure == null) {
+                        connectFailure = new TransferFailedException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+
+            // Only fatal if no worker was left to drain the queue
+            if (connectFailure != null && queue.stream().anyMatch(s -> s != END)) {
+                throw connectFailure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new TransferFailedException("Interrupted while downloading from " + repository.getUrl(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                logger.error("Failed to transfer " + failure.getKey() + ": "
+                        + failure.getValue().getMessage());
+            }
+
+            Exception first = failures.values().iterator().next();
+
+            throw new TransferFailedException(
+                    failures.size() + " file(s) could not be transferred with " + repository.getUrl(), first);
+        }
+
+        return submitted;
+    }
+
+    /**
+     * Discards all paths not yet downloaded and stops the workers without waiting for them.
+     */
+    void cancel() {
+        queue.clear();
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * A worker with its own connection to the repository.
+     */
+    private final class Worker {
+        /**
+         * Whether the connection comes from the pool, rather than from the caller, who gives it back
+         */
+        private boolean owned;
+
+        private Wagon wagon;
+
+        /**
+         * A failed transfer may have broken the connection, so it is not reused
+         */
+        private boolean failed;
+
+        /**
+         * @param wagon a Wagon connected to the repository, or <code>null</code> to open a connection
+         */
+        private Worker(Wagon wagon) throws WagonException {
+            this.owned = wagon == null;
+            this.wagon = owned ? pool.acquire(repository) : wagon;
+
+            addListeners();
+        }
+
+        private void work(Sink sink) throws WagonException, InterruptedException {
+            try {
+                String s;
+
+                while ((s = queue.take()) != END) {
+                    if (limit != null) {
+                        limit.acquire();
+                    }
+
+                    try {
+                        transfer(sink, s);
+                    } finally {
+                        if (limit != null) {
+                            limit.release();
+                        }
+                    }
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Hands a path to the sink, and again over a new connection as long as the retry policy allows.
+         */
+        private void transfer(Sink sink, String path) throws WagonException, InterruptedException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    sink.receive(wagon, path);
+
+                    if (limit != null) {
+                        limit.succeeded();
+                    }
+
+                    return;
+                } catch (WagonException | IOException e) {
+                    if (limit != null && RetryPolicy.isTransient(e)) {
+                        limit.failed();
+                    }
+
+                    if (!retryPolicy.shouldRetry(e, attempt)) {
+                        failures.put(path, e);
+
+                        failed = true;
+
+                        return;
+                    }
+
+                    logger.warn("Transferring " + path + " failed, trying again: " + e.getMessage());
+
+                    onRetry.run();
+
+                    retryPolicy.backOff(attempt);
+
+                    try {
+                        reconnect();
+                    } catch (WagonException connectFailure) {
+                        failures.put(path, connectFailure);
+
+                        failed = true;
+
+                        throw connectFailure;
+                    }
+                }
+            }
+        }
+
+        private void reconnect() throws WagonException {
+            // Connected first, so that the worker is left with a Wagon to give back if that fails
+            Wagon connected = pool.acquire(repository);
+
+            removeListeners();
+
+            // The caller's connection is left to the caller
+            if (owned) {
+                pool.invalidate(wagon);
+            }
+
+            wagon = connected;
+            owned = true;
+
+            addListeners();
+        }
+
+        private void addListeners() {
+            for (TransferListener listener : listeners) {
+                wagon.addTransferListener(listener);
+            }
+
+            if (limit != null) {
+                wagon.addTransferListener(limit);
+            }
+        }
+
+        private void removeListeners() {
+            for (TransferListener listener : listeners) {
+                wagon.removeTransferListener(listener);
+            }
+
+            if (limit != null) {
+                wagon.removeTransferListener(limit);
+            }
+        }
+
+        private void close() {
+            removeListeners();
+
+            if (owned && failed) {
+                pool.invalidate(wagon);
+            } else if (owned) {
+                pool.release(wagon);
+            }
+        }
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A sorted set of paths that keeps the long prefixes they share, such as <code>org/apache/maven/</code>, only
+ * once. Paths are collected in a small buffer, which is sorted and front coded into an immutable run when full:
+ * every path is stored as the length of the prefix it shares with the previous path and the rest of its UTF-8
+ * bytes. Every {@value #BLOCK_SIZE}th path is stored in full, so that a lookup can binary search the blocks and
+ * decode a single one. Runs are merged when there are too many of them.
+ * <p>
+ * Given a spill directory, runs are written to temporary files there once the runs kept in memory exceed the
+ * memory limit, leaving only the offsets of their blocks in memory. The files are deleted by {@link #close()}.
+ * </p>
+ * <p>
+ * Paths are ordered by their UTF-8 bytes, which is the order of <code>String</code> for the ASCII paths of a
+ * repository. The set is safe for concurrent use, but must not be modified while it is iterated.
+ * </p>
+ */
+class PathSet implements Iterable<String>, Closeable {
+    /**
+     * The number of paths front coded against each other.
+     */
+    static final int BLOCK_SIZE = 16;
+
+    /**
+     * The number of paths collected before they are written to a run.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The number of runs that are merged into one.
+     */
+    private static final int MAX_RUNS = 8;
+
+    private final File spillDirectory;
+
+    private final long memoryLimit;
+
+    private Set<String> buffer = new HashSet<>();
+
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     * The size of the runs kept in memory.
+     */
+    private long memory;
+
+    /**
+     * Creates a set that is kept in memory.
+     */
+    PathSet() {
+        this(null, 0);
+    }
+
+    /**
+     * @param spillDirectory the directory to write runs to, or <code>null</code> to keep them in memory
+     * @param memoryLimit the size in bytes of the runs kept in memory before runs are written to disk
+     */
+    PathSet(File spillDirectory, long memoryLimit) {
+        this.spillDirectory = spillDirectory;
+        this.memoryLimit = memoryLimit;
+    }
+
+    synchronized void add(String path) {
+        buffer.add(path);
+
+        if (buffer.size() >= BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    synchronized boolean contains(String path) {
+        if (buffer.contains(path)) {
+            return true;
+        }
+
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            for (Run run : runs) {
+                if (run.contains(key)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return false;
+    }
+
+    synchronized boolean isEmpty() {
+        return buffer.isEmpty() && runs.isEmpty();
+    }
+
+    /**
+     * @return the number of paths, merging all runs into one to count them
+     */
+    synchronized int size() {
+        compact();
+
+        return runs.isEmpty() ? 0 : runs.get(0).count;
+    }
+
+    /**
+     * @return the paths in sorted order
+     */
+    @Override
+    public synchronized Iterator<String> iterator() {
+        flush();
+
+        Iterator<byte[]> keys = merge(new ArrayList<>(runs));
+
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return new String(keys.next(), StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * Deletes the runs written to disk.
+     */
+    @Override
+    public synchronized void close() {
+        buffer.clear();
+
+        for (Run run : runs) {
+            run.delete();
+        }
+
+        runs.clear();
+
+        memory = 0;
+    }
+
+    private void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        byte[][] keys = new byte[buffer.size()][];
+
+        int i = 0;
+
+        for (String path : buffer) {
+            keys[i++] = path.getBytes(StandardCharsets.UTF_8);
+        }
+
+        buffer = new HashSet<>();
+
+        Arrays.sort(keys, PathSet::compare);
+
+        add(write(Arrays.asList(keys).iterator()));
+
+        if (runs.size() > MAX_RUNS) {
+            compact();
+        }
+    }
+
+    /**
+     * Merges all runs into one.
+     */
+    private void compact() {
+        flush();
+
+        if (runs.size() <= 1) {
+            return;
+        }
+
+        List<Run> merged = new ArrayList<>(runs);
+
+        runs.clear();
+
+        memory = 0;
+
+        Run run = write(merge(merged));
+
+        for (Run old : merged) {
+            old.delete();
+        }
+
+        add(run);
+    }
+
+    private void add(Run run) {
+        runs.add(run);
+
+        if (run.data != null) {
+            memory += run.data.length;
+        }
+    }
+
+    private Run write(Iterator<byte[]> keys) {
+        try (RunWriter writer = new RunWriter()) {
+            while (keys.hasNext()) {
+                writer.write(keys.next());
+            }
+
+            return writer.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the distinct keys of the runs in sorted order
+     */
+    private static Iterator<byte[]> merge(List<Run> runs) {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> compare(a.key, b.key));
+
+        try {
+            for (Run run : runs) {
+                Cursor cursor = run.open();
+
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return new Iterator<byte[]>() {
+            private byte[] last;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (!cursors.isEmpty() && last != null && compare(cursors.peek().key, last) == 0) {
+                        advance(cursors.poll());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Cursor cursor = cursors.poll();
+
+                last = cursor.key;
+
+                try {
+                    advance(cursor);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                return last;
+            }
+
+            private void advance(Cursor cursor) throws IOException {
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                } else {
+                    cursor.in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Compares the keys as unsigned bytes, which orders UTF-8 strings by code point.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+
+        for (int i = 0; i < length; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return a.length - b.length;
+    }
+
+    private static int sharedPrefix(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+
+        int i = 0;
+
+        while (i < length && a[i] == b[i]) {
+            i++;
+        }
+
+        return i;
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        int v = value;
+
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+
+        out.write(v);
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+
+        for (int v = value >>> 7; v != 0; v >>>= 7) {
+            length++;
+        }
+
+        return length;
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+
+            if (b < 0) {
+                throw new EOFException();
+            }
+
+            value |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Front codes sorted keys into a run, in memory until the memory limit is reached and in a temporary file
+     * from then on.
+     */
+    private final class RunWriter implements Closeable {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private OutputStream out = bytes;
+
+        private File file;
+
+        private long size;
+
+        private int count;
+
+        private long[] blocks = new long[16];
+
+        private byte[] previous;
+
+        void write(byte[] key) throws IOException {
+            int shared = 0;
+
+            if (count % BLOCK_SIZE == 0) {
+                int block = count / BLOCK_SIZE;
+
+                if (block == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+
+                blocks[block] = size;
+            } else {
+                shared = sharedPrefix(previous, key);
+            }
+
+            int suffix = key.length - shared;
+
+            writeVarInt(out, shared);
+            writeVarInt(out, suffix);
+            out.write(key, shared, suffix);
+
+            size += varIntLength(shared) + varIntLength(suffix) + suffix;
+
+            previous = key;
+
+            count++;
+
+            if (bytes != null && spillDirectory != null && memory + size > memoryLimit) {
+                spill();
+            }
+        }
+
+        Run finish() throws IOException {
+            long[] offsets = Arrays.copyOf(blocks, (count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+            if (bytes != null) {
+                return new Run(bytes.toByteArray(), null, offsets, count, size);
+            }
+
+            out.close();
+
+            Run run = new Run(null, file, offsets, count, size);
+
+            file = null;
+
+            return run;
+        }
+
+        private void spill() throws IOException {
+            file = File.createTempFile("staging-plugin-paths", ".run", spillDirectory);
+
+            // In case the set is not closed after a failure
+            file.deleteOnExit();
+
+            out = new BufferedOutputStream(new FileOutputStream(file));
+
+            bytes.writeTo(out);
+
+            bytes = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                // Not finished
+                out.close();
+
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * An immutable run of front coded keys, held in memory or in a file.
+     */
+    private static final class Run {
+        private final byte[] data;
+
+        private final File file;
+
+        private final long[] blocks;
+
+        private final int count;
+
+        private final long length;
+
+        private RandomAccessFile raf;
+
+        Run(byte[] data, File file, long[] blocks, int count, long length) {
+            this.data = data;
+            this.file = file;
+            this.blocks = blocks;
+            this.count = count;
+            this.length = length;
+        }
+
+        Cursor open() throws IOException {
+            InputStream in = data != null
+                    ? new ByteArrayInputStream(data)
+                    : new BufferedInputStream(new FileInputStream(file));
+
+            return new Cursor(in, count);
+        }
+
+        boolean contains(byte[] key) throws IOException {
+            // The last block whose first key is not greater than the key
+            int lo = 0;
+            int hi = blocks.length - 1;
+
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+
+                if (compare(block(mid).firstKey(), key) <= 0) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+
+            Cursor cursor = block(lo);
+
+            while (cursor.next()) {
+                int c = compare(cursor.key, key);
+
+                if (c >= 0) {
+                    return c == 0;
+                }
+            }
+
+            return false;
+        }
+
+        private Cursor block(int block) throws IOException {
+            long start = blocks[block];
+            long end = block + 1 < blocks.length ? blocks[block + 1] : length;
+
+            int entries = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+
+            if (data != null) {
+                return new Cursor(new ByteArrayInputStream(data, (int) start, (int) (end - start)), entries);
+            }
+
+            if (raf == null) {
+                raf = new RandomAccessFile(file, "r");
+            }
+
+            byte[] b = new byte[(int) (end - start)];
+
+            raf.seek(start);
+            raf.readFully(b);
+
+            return new Cursor(new ByteArrayInputStream(b), entries);
+        }
+
+        void delete() {
+            if (file != null) {
+                try {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    // Deleting anyway
+                }
+
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Decodes the keys of a run, or of a block of a run, one after the other.
+     */
+    private static final class Cursor {
+        private final InputStream in;
+
+        private int remaining;
+
+        private byte[] key;
+
+        Cursor(InputStream in, int count) {
+            this.in = in;
+            this.remaining = count;
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+
+            int shared = readVarInt(in);
+            int suffix = readVarInt(in);
+
+            byte[] next = new byte[shared + suffix];
+
+            if (shared > 0) {
+                System.arraycopy(key, 0, next, 0, shared);
+            }
+
+            int read = 0;
+
+            while (read < suffix) {
+                int n = in.read(next, shared + read, suffix - read);
+
+                if (n < 0) {
+                    throw new EOFException();
+                }
+
+                read += n;
+            }
+
+            key = next;
+
+            remaining--;
+
+            return true;
+        }
+
+        byte[] firstKey() throws IOException {
+            next();
+
+            return key;
+        }
+    }
+}
@@ -19,6 +19,8 @@
 package org.apache.maven.plugins.stage;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import org.apache.maven.wagon.WagonException;
 import org.apache.maven.wagon.repository.Repository;
@@ -35,8 +37,82 @@ public interface RepositoryCopier {
 
     String SHA1 = "sha1";
 
+    String SHA256 = "sha256";
+
+    String SHA512 = "sha512";
+
     String MAVEN_METADATA = "maven-metadata.xml";
 
     void copy(Repository sourceRepository, Repository targetRepository, String version)
             throws WagonException, IOException;
+
+    void copy(
+            Repository sourceRepository,
+            Repository targetRepository,
+            String version,
+            CopyConfiguration configuration)
+            throws WagonException, IOException;
+
+    /**
+     * Copies the staged version to several target repositories at once. The source repository is downloaded and
+     * archived once, and the targets are published to concurrently, each with its own merged metadata.
+     *
+     * @param sourceRepository the staging repository
+     * @param targetRepositories the repositories to publish to
+     * @param version the version to copy
+     * @param configuration the configuration of the copy
+     * @throws WagonException if one or more of the target repositories could not be published to, after all of
+     *         them have been attempted
+     */
+    void copy(
+            Repository sourceRepository,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration)
+            throws WagonException, IOException;
+
+    /**
+     * Lists the staged version and writes the files to copy, with their sizes and checksums where known, into the
+     * {@link CopyConfiguration#getPlan() plan file}. Nothing is copied. The plan can then be copied in parts on
+     * several machines, each with the same plan and its own {@link CopyConfiguration#getPlanPart() part}.
+     *
+     * @param sourceRepository the staging repository
+     * @param version the version to copy
+     * @param configuration the configuration of the copy, naming the plan file
+     */
+    void plan(Repository sourceRepository, String version, CopyConfiguration configuration)
+            throws WagonException, IOException;
+
+    /**
+     * Publishes a plan that was copied in parts: checks that all {@link CopyConfiguration#getPlanParts() parts}
+     * are unpacked in every target repository and runs their rename scripts, which move the new version into
+     * place.
+     *
+     * @param targetRepositories the repositories the parts were copied to
+     * @param version the version that was copied
+     * @param configuration the configuration of the copy, with the number of parts
+     * @throws WagonException if a part is missing in a target repository, before anything is renamed there
+     */
+    void commit(List<Repository> targetRepositories, String version, CopyConfiguration configuration)
+            throws WagonException, IOException;
+
+    /**
+     * Starts a copy in a thread of its own, as {@link #copy(Repository, List, String, CopyConfiguration)} does.
+     * <p>
+     * Cancelling the returned future with interruption stops the copy at the next file or phase. A copy that is
+     * cancelled before its last step does not publish the merged metadata, so Maven does not see the new version
+     * in the target repositories.
+     * </p>
+     *
+     * @param sourceRepository the staging repository
+     * @param targetRepositories the repositories to publish to
+     * @param version the version to copy
+     * @param configuration the configuration of the copy
+     * @return the outcome of the copy, failing with the exception the copy would have thrown
+     */
+    Future<Void> copyAsync(
+            Repository sourceRepository,
+            List<Repository> targetRepositories,
+            String version,
+            CopyConfiguration configuration);
 }
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Lists all files of a repository. Directories are listed by a pool of workers, each with its own Wagon
+ * connection, that take pending directories from a shared deque so that sibling directories are explored
+ * concurrently. Files are handed to a consumer as soon as they are found.
+ * <p>
+ * A {@link ScanFilter} can restrict the scan to parts of the repository.
+ * </p>
+ * <p>
+ * Entries ending with a <code>/</code> in a Wagon file list are directories, anything else is taken to be a
+ * file. This spares a <code>getFileList</code> request per file.
+ * </p>
+ */
+class RepositoryScanner implements ListingStrategy {
+    /**
+     * Tells a worker that there are no more directories to list. Compared by identity.
+     */
+    private static final String END = new String("");
+
+    private final WagonPool pool;
+
+    private final Repository repository;
+
+    private final int threads;
+
+    private final Logger logger;
+
+    private final ScanFilter filter;
+
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    private Runnable onRetry = () -> {};
+
+    RepositoryScanner(WagonManager wagonManager, Repository repository, int threads, Logger logger) {
+        this(wagonManager, repository, threads, ScanFilter.ALL, logger);
+    }
+
+    /**
+     * @param filter decides which directories are listed and which files are handed to the consumer
+     */
+    RepositoryScanner(
+            WagonManager wagonManager, Repository repository, int threads, ScanFilter filter, Logger logger) {
+        this(new WagonPool(wagonManager), repository, threads, filter, logger);
+    }
+
+    /**
+     * @param pool provides the connections of the workers
+     * @param filter decides which directories are listed and which files are handed to the consumer
+     */
+    RepositoryScanner(WagonPool pool, Repository repository, int threads, ScanFilter filter, Logger logger) {
+        this.pool = pool;
+        this.repository = repository;
+        this.threads = Math.max(1, threads);
+        this.filter = filter;
+        this.logger = logger;
+    }
+
+    /**
+     * Lists failed directories again, each time over a new connection but for the one given to
+     * {@link #scan(Wagon, String, Consumer)}.
+     *
+     * @param retryPolicy decides which listings are tried again and when
+     * @param onRetry called from the worker threads every time a listing is tried again
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy, Runnable onRetry) {
+        this.retryPolicy = retryPolicy;
+        this.onRetry = onRetry;
+    }
+
+    /**
+     * Lists all files below <code>basePath</code> with {@link #scan(Wagon, String, Consumer)}. A scan is always
+     * possible, so this is the last of the strategies.
+     */
+    @Override
+    public boolean list(Wagon wagon, String basePath, Consumer<String> consumer) throws WagonException {
+        scan(wagon, basePath, consumer);
+
+        return true;
+    }
+
+    /**
+     * Lists all files below <code>basePath</code>. The given, already connected, Wagon is used by the first
+     * worker. The consumer is called from the worker threads and must be thread safe.
+     *
+     * @param wagon a Wagon connected to the repository
+     * @param basePath the directory to start from, <code>""</code> for the repository root
+     * @param consumer receives the path of every file found, relative to the repository root
+     * @throws WagonException if a directory could not be listed
+     * @throws RuntimeException the first failure of the consumer, once all workers are done
+     */
+    void scan(Wagon wagon, String basePath, Consumer<String> consumer) throws WagonException {
+        BlockingDeque<String> directories = new LinkedBlockingDeque<>();
+
+        AtomicInteger pending = new AtomicInteger(1);
+
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        directories.add(basePath);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                Wagon workerWagon = i == 0 ? wagon : null;
+
+                futures.add(executor.submit(() -> {
+                    work(workerWagon, directories, pending, failure, consumer);
+                    return null;
+                }));
+            }
+
+            WagonException connectFailure = null;
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+
+                    if (connectFailure == null) {
+                        connectFailure = cause instanceof WagonException
+                                ? (WagonException) cause
+                                : new TransferFailedException(cause.getMessage(), cause);
+                    }
+                }
+            }
+
+            // Only fatal if no worker was left to finish the scan
+            if (connectFailure != null && pending.get() > 0) {
+                failure.compareAndSet(null, connectFailure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new TransferFailedException("Interrupted while scanning " + repository.getUrl(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure.get() instanceof RuntimeException) {
+            throw (RuntimeException) failure.get();
+        } else if (failure.get() != null) {
+            throw (WagonException) failure.get();
+        }
+    }
+
+    private void work(
+            Wagon wagon,
+            BlockingDeque<String> directories,
+            AtomicInteger pending,
+            AtomicReference<Exception> failure,
+            Consumer<String> consumer)
+            throws WagonException, InterruptedException {
+        boolean owned = wagon == null;
+
+        if (owned) {
+            wagon = pool.acquire(repository);
+        }
+
+        try {
+            while (failure.get() == null) {
+                // Taking from the tail keeps each worker depth first while idle workers pick up siblings
+                String directory = directories.takeLast();
+
+                if (directory == END) {
+                    return;
+                }
+
+                try {
+                    wagon = list(wagon, owned, directory, directories, pending, consumer);
+                } catch (WagonException | RuntimeException e) {
+                    // A failure of the consumer stops the scan too, the other workers would only run into it again
+                    failure.compareAndSet(null, e);
+
+                    stop(directories);
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        stop(directories);
+                    }
+                }
+            }
+        } finally {
+            if (owned && failure.get() != null) {
+                pool.invalidate(wagon);
+            } else if (owned) {
+                pool.release(wagon);
+            }
+        }
+    }
+
+    /**
+     * Lists a directory, and again as long as the retry policy allows.
+     *
+     * @return the Wagon to go on with, a new one if the listing was tried again over a new connection
+     */
+    private Wagon list(
+            Wagon wagon,
+            boolean owned,
+            String directory,
+            BlockingDeque<String> directories,
+            AtomicInteger pending,
+            Consumer<String> consumer)
+            throws WagonException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                list(wagon, directory, directories, pending, consumer);
+
+                return wagon;
+            } catch (WagonException e) {
+                if (!retryPolicy.shouldRetry(e, attempt)) {
+                    throw e;
+                }
+
+                logger.warn("Listing " + directory + " failed, trying again: " + e.getMessage());
+
+                onRetry.run();
+
+                retryPolicy.backOff(attempt);
+
+                if (owned) {
+                    // Connected first, so that the caller is left with a Wagon to give back if that fails
+                    Wagon connected = pool.acquire(repository);
+
+                    pool.invalidate(wagon);
+
+                    wagon = connected;
+                }
+            }
+        }
+    }
+
+    private void list(
+            Wagon wagon,
+            String directory,
+            BlockingDeque<String> directories,
+            AtomicInteger pending,
+            Consumer<String> consumer)
+            throws WagonException {
+        List<String> entries;
+
+        try {
+            entries = wagon.getFileList(directory);
+        } catch (ResourceDoesNotExistException e) {
+            // is thrown when calling getFileList on a file
+            consumer.accept(directory);
+
+            return;
+        }
+
+        String prefix = directory.isEmpty() || directory.endsWith("/") ? directory : directory + "/";
+
+        for (String entry : filter.select(directory, entries)) {
+            if (entry.equals("./") || entry.equals("../") || entry.equals(".svn/")) {
+                continue;
+            }
+
+            logger.debug("Found file in the source repository: " + entry);
+
+            if (entry.endsWith("/")) {
+                pending.incrementAndGet();
+
+                directories.addLast(prefix + entry.substring(0, entry.length() - 1));
+            } else {
+                consumer.accept(prefix + entry);
+            }
+        }
+    }
+
+    private void stop(BlockingDeque<String> directories) {
+        for (int i = 0; i < threads; i++) {
+            directories.addLast(END);
+        }
+    }
+}
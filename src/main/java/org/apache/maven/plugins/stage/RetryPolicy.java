@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.wagon.TransferFailedException;
+
+/**
+ * Decides whether a failed transfer is tried again, and how long to wait before. Only failures of the transfer
+ * itself are tried again: a missing file or a refused authorization does not go away, and neither do failures of
+ * the local file system. A transfer that failed as its thread was interrupted, such as by cancelling the copy, is
+ * not tried again either.
+ * <p>
+ * The delay doubles with every attempt, up to half a minute, and a random part of up to half of it is taken off
+ * so that workers that failed at the same time do not all try again at the same time.
+ * </p>
+ */
+final class RetryPolicy {
+    /**
+     * Never tries again.
+     */
+    static final RetryPolicy NONE = new RetryPolicy(0, 0);
+
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final int retries;
+
+    private final long initialDelay;
+
+    /**
+     * @param retries the number of times to try a transfer again
+     * @param initialDelay the number of milliseconds to wait before the first retry
+     */
+    RetryPolicy(int retries, long initialDelay) {
+        this.retries = Math.max(0, retries);
+        this.initialDelay = Math.max(0, initialDelay);
+    }
+
+    /**
+     * @param failure the failure of the last attempt
+     * @param attempt the number of attempts made so far
+     * @return whether to try again
+     */
+    boolean shouldRetry(Exception failure, int attempt) {
+        return attempt <= retries && isTransient(failure);
+    }
+
+    /**
+     * @return whether a failure may go away by trying again
+     */
+    static boolean isTransient(Exception failure) {
+        return failure instanceof TransferFailedException
+                && !Thread.currentThread().isInterrupted()
+                && !isInterruption(failure);
+    }
+
+    private static boolean isInterruption(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedException
+                    || t instanceof InterruptedIOException
+                    || t instanceof ClosedByInterruptException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Waits before the next attempt.
+     *
+     * @param attempt the number of attempts made so far
+     */
+    void backOff(int attempt) throws InterruptedException {
+        long delay = Math.min(MAX_DELAY, initialDelay << Math.min(attempt - 1, 20));
+
+        if (delay > 0) {
+            Thread.sleep(delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.apache.maven.plugins.stage.RepositoryCopier.MAVEN_METADATA;
+
+/**
+ * Decides which parts of a repository a {@link RepositoryScanner} lists. Directories that are left out are
+ * never listed at all.
+ * <p>
+ * When scoped to a version, only the version directories of that version are listed, along with the metadata
+ * of their artifacts. A directory is taken to be an artifact directory when it holds a directory named after
+ * the version, or a <code>maven-metadata.xml</code> file and directories whose names start with a digit, as
+ * versions do. An artifact without the version is left out, its metadata included. Everything below a version
+ * directory selected that way is listed. Other directories are listed as groups, and their metadata is kept: a
+ * group can have metadata of its own, such as the prefixes of the plugins it holds. Without a version, a
+ * directory holding a
+ * <code>maven-metadata.xml</code> file is taken to be an artifact directory, unless it holds included artifacts
+ * below it.
+ * </p>
+ * <p>
+ * Artifacts can also be selected with <code>groupId:artifactId</code> patterns, where <code>*</code> matches
+ * any number of characters and a missing artifactId matches all artifacts of the group. An artifact is listed
+ * when it matches an include, or there are no includes, and does not match an exclude. Excluding all artifacts
+ * of a group also leaves out the groups below it, as their directories cannot be told apart from artifact
+ * directories without listing them.
+ * </p>
+ */
+class ScanFilter {
+    /**
+     * Lists the whole repository.
+     */
+    static final ScanFilter ALL = new ScanFilter(null, Collections.emptyList(), Collections.emptyList());
+
+    private final String version;
+
+    private final List<Pattern[]> includes = new ArrayList<>();
+
+    private final List<Pattern[]> excludes = new ArrayList<>();
+
+    /**
+     * The version directories selected so far, below an artifact directory.
+     */
+    private final Set<String> versionDirectories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param version the version to scope the scan to, or <code>null</code> to list all versions
+     * @param includes the <code>groupId:artifactId</code> patterns of the artifacts to list, all if empty
+     * @param excludes the <code>groupId:artifactId</code> patterns of the artifacts to leave out
+     */
+    ScanFilter(String version, Collection<String> includes, Collection<String> excludes) {
+        this.version = version;
+
+        for (String include : includes) {
+            this.includes.add(compile(include));
+        }
+
+        for (String exclude : excludes) {
+            this.excludes.add(compile(exclude));
+        }
+    }
+
+    /**
+     * @return the version the scan is scoped to, or <code>null</code> if all versions are listed
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * Selects the entries of a directory listing to keep.
+     *
+     * @param directory the listed directory, relative to the repository root, <code>""</code> for the root
+     * @param entries the entries of the directory as returned by the Wagon, directories end with <code>/</code>
+     * @return the entries to keep
+     */
+    List<String> select(String directory, List<String> entries) {
+        String dir = directory.endsWith("/") ? directory.substring(0, directory.length() - 1) : directory;
+
+        if (version != null && isWithinVersion(dir)) {
+            return entries;
+        }
+
+        boolean hasVersion = version != null && entries.contains(version + "/");
+
+        // The prefix metadata of a plugin group cannot be told apart from the metadata of an artifact by its name
+        boolean artifact = version != null
+                ? hasVersion || (entries.contains(MAVEN_METADATA) && hasVersionDirectories(entries))
+                : entries.contains(MAVEN_METADATA);
+
+        if (artifact && !hasVersion && version != null) {
+            // Nothing of the artifact is staged, its metadata is left as it is
+            return Collections.emptyList();
+        }
+
+        if (artifact && !dir.isEmpty() && !isIncludedArtifact(dir)) {
+            if (hasVersion || includes.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            // Maybe a group with metadata of its own, holding included artifacts
+            List<String> selected = new ArrayList<>();
+
+            for (String entry : entries) {
+                if (entry.endsWith("/")
+                        && mayContainIncludedArtifacts(dir + "/" + entry.substring(0, entry.length() - 1))) {
+                    selected.add(entry);
+                }
+            }
+
+            return selected;
+        }
+
+        List<String> selected = new ArrayList<>();
+
+        for (String entry : entries) {
+            if (entry.endsWith("/")) {
+                String name = entry.substring(0, entry.length() - 1);
+
+                if (version != null && artifact) {
+                    // The other directories of an artifact are other versions
+                    if (name.equals(version)) {
+                        versionDirectories.add(dir.isEmpty() ? name : dir + "/" + name);
+
+                        selected.add(entry);
+                    }
+                } else if (artifact || mayContainIncludedArtifacts(dir.isEmpty() ? name : dir + "/" + name)) {
+                    selected.add(entry);
+                }
+            } else if (version == null || entry.startsWith(MAVEN_METADATA)) {
+                selected.add(entry);
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * @return whether the directory is a version directory selected below an artifact directory, or below one
+     */
+    private boolean isWithinVersion(String dir) {
+        for (String d = dir; !d.isEmpty(); d = d.substring(0, Math.max(d.lastIndexOf('/'), 0))) {
+            if (versionDirectories.contains(d)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean hasVersionDirectories(List<String> entries) {
+        for (String entry : entries) {
+            if (entry.endsWith("/") && Character.isDigit(entry.charAt(0))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param dir an artifact directory
+     */
+    private boolean isIncludedArtifact(String dir) {
+        int idx = dir.lastIndexOf('/');
+
+        String groupId = idx < 0 ? "" : dir.substring(0, idx).replace('/', '.');
+        String artifactId = dir.substring(idx + 1);
+
+        return (includes.isEmpty() || matchesAny(includes, groupId, artifactId))
+                && !matchesAny(excludes, groupId, artifactId);
+    }
+
+    /**
+     * @param dir a directory that may be a group, or an artifact of the enclosing group
+     */
+    private boolean mayContainIncludedArtifacts(String dir) {
+        if (isExcludedGroup(dir.replace('/', '.'))) {
+            return false;
+        }
+
+        int idx = dir.lastIndexOf('/');
+
+        String groupId = idx < 0 ? "" : dir.substring(0, idx).replace('/', '.');
+        String artifactId = dir.substring(idx + 1);
+
+        if (matchesAny(excludes, groupId, artifactId)) {
+            return false;
+        }
+
+        if (includes.isEmpty()) {
+            return true;
+        }
+
+        String group = dir.replace('/', '.');
+
+        for (Pattern[] include : includes) {
+            // The directory may be (a prefix of) an included group, or an included artifact
+            Matcher matcher = include[0].matcher(group);
+
+            if (matcher.matches() || matcher.hitEnd() || matches(include, groupId, artifactId)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isExcludedGroup(String groupId) {
+        for (Pattern[] exclude : excludes) {
+            if (exclude[1].pattern().equals(".*") && exclude[0].matcher(groupId).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matchesAny(List<Pattern[]> patterns, String groupId, String artifactId) {
+        for (Pattern[] pattern : patterns) {
+            if (matches(pattern, groupId, artifactId)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matches(Pattern[] pattern, String groupId, String artifactId) {
+        return pattern[0].matcher(groupId).matches() && pattern[1].matcher(artifactId).matches();
+    }
+
+    private static Pattern[] compile(String pattern) {
+        int idx = pattern.indexOf(':');
+
+        String groupId = idx < 0 ? pattern : pattern.substring(0, idx);
+        String artifactId = idx < 0 ? "*" : pattern.substring(idx + 1);
+
+        return new Pattern[] {glob(groupId.trim()), glob(artifactId.trim())};
+    }
+
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+
+        String[] parts = glob.split("\\*", -1);
+
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+
+            if (!parts[i].isEmpty()) {
+                regex.append(Pattern.quote(parts[i]));
+            }
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+}
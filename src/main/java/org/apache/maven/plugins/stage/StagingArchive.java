@@ -0,0 +1,660 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.function.IOSupplier;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.maven.wagon.StreamingWagon;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+
+import static org.apache.maven.plugins.stage.RepositoryCopier.IN_PROCESS_MARKER;
+
+/**
+ * The archive that is deployed to the target repository, a zip file unless another {@link ArchiveFormat} is
+ * chosen. Files are stored with their version directory
+ * marked as in-process, and the commands needed to rename those directories once the archive has been
+ * unpacked are collected along the way.
+ * <p>
+ * Checksums are computed while the files are written. Staged files that come without a checksum file for one of
+ * the configured algorithms other than MD5 and SHA-1, which every deployment carries, get one generated.
+ * </p>
+ * <p>
+ * With more than one compression thread, zip entries are deflated concurrently into temporary files and gathered
+ * into the archive when it is closed. Files that are compressed already are stored as they are.
+ * </p>
+ * <p>
+ * The staged files can be split over several archives, which can then be uploaded and unpacked at the same time.
+ * Every file goes to the archive holding the fewest bytes so far.
+ * </p>
+ * <p>
+ * Entries can be added from several threads.
+ * </p>
+ */
+class StagingArchive implements Closeable {
+    /**
+     * Files up to this size are held in memory while they are downloaded concurrently, larger ones are
+     * spooled to disk.
+     */
+    private static final int SPOOL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Large enough for a file to be copied with few reads, and for the writes to pass the buffers of the archive
+     * streams by.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Deflating these again costs time for next to no gain.
+     */
+    private static final List<String> COMPRESSED_EXTENSIONS =
+            Arrays.asList(".jar", ".war", ".ear", ".zip", ".gz", ".tgz", ".bz2", ".xz");
+
+    /**
+     * One of the archives the staged files are split over.
+     */
+    private static final class Shard {
+        private final ArchiveOutputStream<ArchiveEntry> out;
+
+        private final ParallelScatterZipCreator scatter;
+
+        private long size;
+
+        /**
+         * @param compression the threads deflating the entries, or <code>null</code> to write them as they come
+         */
+        Shard(File archive, ArchiveFormat format, ExecutorService compression) throws IOException {
+            this.out = format.open(archive);
+            this.scatter = compression != null ? new ParallelScatterZipCreator(compression) : null;
+        }
+    }
+
+    /**
+     * The threads deflating the entries of all zip files, or <code>null</code> if they are written as they come
+     */
+    private final ExecutorService compression;
+
+    private final List<Shard> shards = new ArrayList<>();
+
+    private final ArchiveFormat format;
+
+    private final String version;
+
+    private final File spoolDirectory;
+
+    private final PathSet moveCommands = new PathSet();
+
+    private final PathSet existingDirectories = new PathSet();
+
+    private final List<String> generated = new ArrayList<>();
+
+    /**
+     * The checksums of the current thread, by the algorithms they compute
+     */
+    private final ThreadLocal<Map<List<String>, Checksums>> checksums = ThreadLocal.withInitial(HashMap::new);
+
+    private boolean recordingSha1s;
+
+    /**
+     * The SHA-1 checksums of the entries written, keyed by entry name. Filled in by the compression threads.
+     */
+    private final Map<String, String> sha1s = new ConcurrentSkipListMap<>();
+
+    private final PathSet entries = new PathSet();
+
+    /**
+     * Used while holding the lock of the archive
+     */
+    private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+    /**
+     * The checksum files to add when closing the archive, unless the staged repository has them already.
+     * Filled in by the compression threads.
+     */
+    private final Map<String, String> generatedChecksums = new ConcurrentSkipListMap<>();
+
+    private boolean closed;
+
+    /**
+     * @param archive the zip file to write
+     * @param version the version being staged
+     * @param algorithms the checksums to generate, named by the extension of their files
+     */
+    StagingArchive(File archive, String version, Collection<String> algorithms) throws IOException {
+        this(Collections.singletonList(archive), version, algorithms, 1);
+    }
+
+    /**
+     * @param archives the zip files to write, the staged files are split over them
+     * @param version the version being staged
+     * @param algorithms the checksums to generate, named by the extension of their files
+     * @param compressionThreads the number of entries to deflate at once, shared among the zip files
+     */
+    StagingArchive(List<File> archives, String version, Collection<String> algorithms, int compressionThreads)
+            throws IOException {
+        this(archives, version, algorithms, compressionThreads, ArchiveFormat.ZIP);
+    }
+
+    /**
+     * @param archives the archives to write, the staged files are split over them
+     * @param version the version being staged
+     * @param algorithms the checksums to generate, named by the extension of their files
+     * @param compressionThreads the number of entries to deflate at once, shared among the zip files
+     * @param format the format of the archives
+     */
+    StagingArchive(
+            List<File> archives,
+            String version,
+            Collection<String> algorithms,
+            int compressionThreads,
+            ArchiveFormat format)
+            throws IOException {
+        this.version = version;
+        this.format = format;
+        this.spoolDirectory = archives.get(0).getAbsoluteFile().getParentFile();
+
+        this.compression = format == ArchiveFormat.ZIP && compressionThreads > 1
+                ? Executors.newFixedThreadPool(compressionThreads)
+                : null;
+
+        try {
+            for (File archive : archives) {
+                shards.add(new Shard(archive, format, compression));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeShards();
+
+            throw e;
+        }
+
+        generated.addAll(algorithms);
+        generated.remove(RepositoryCopier.MD5);
+        generated.remove(RepositoryCopier.SHA1);
+    }
+
+    /**
+     * Computes the SHA-1 checksum of every staged entry as it is written, so that the unpacked files can be
+     * verified on the target machine. To be called before any file is added.
+     */
+    void recordSha1s() {
+        recordingSha1s = true;
+    }
+
+    /**
+     * @return the SHA-1 checksums of the staged entries, keyed by entry name, if {@link #recordSha1s()} was called.
+     *         Complete once the archive is closed.
+     */
+    Map<String, String> getSha1s() {
+        return sha1s;
+    }
+
+    /**
+     * Adds a file of the staged repository.
+     *
+     * @param path the path of the file, relative to the repository root
+     * @param file the file
+     */
+    void add(String path, File file) throws IOException {
+        add(path, file.length(), () -> Files.newInputStream(file.toPath()));
+    }
+
+    /**
+     * Records a directory of the staged repository, so that version directories are renamed even if they
+     * hold no files.
+     *
+     * @param path the path of the directory, relative to the repository root
+     */
+    synchronized void addDirectory(String path) {
+        if (path.endsWith(version) && !existingDirectories.contains(path)) {
+            moveCommands.add("mv " + path + IN_PROCESS_MARKER + " " + path);
+        }
+    }
+
+    /**
+     * Records that a file already exists in the target repository. Its version directory can then not
+     * simply be renamed into place, so the files staged for that directory are moved one by one instead.
+     * Must be called before files of that directory are added.
+     *
+     * @param path the path of the file, relative to the repository root
+     */
+    synchronized void existsInTarget(String path) {
+        int idx = path.indexOf("/" + version + "/");
+
+        if (idx > 0) {
+            existingDirectories.add(path.substring(0, idx + version.length() + 1));
+        }
+    }
+
+    /**
+     * Adds a file that is not part of the staged repository, such as the rename script, as is. It goes to the
+     * first archive.
+     *
+     * @param name the name of the entry
+     * @param file the file
+     */
+    synchronized void addUnstaged(String name, File file) throws IOException {
+        ArchiveOutputStream<ArchiveEntry> out = shards.get(0).out;
+
+        out.putArchiveEntry(newEntry(name, name, file.length()));
+
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            IOUtils.copyLarge(is, out, buffer);
+        }
+
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * Downloads a file from a repository straight into the archive, without a copy in the work directory.
+     * With <code>exclusive</code> set, a single zip file and a single compression thread, the bytes are written
+     * to the archive as they arrive, which blocks any other thread adding to the archive for the duration of the
+     * download. A download that fails leaves a truncated entry behind, and a later attempt writes another entry of
+     * the same name, which the unpacking overwrites it with. Otherwise the file is buffered first so that several
+     * downloads can proceed at once. So is every file of an archive format that needs the size of an entry before
+     * its content.
+     *
+     * @param wagon a Wagon connected to the repository
+     * @param path the path of the file, relative to the repository root
+     * @param exclusive whether the caller is the only thread downloading into this archive
+     */
+    void transfer(Wagon wagon, String path, boolean exclusive) throws WagonException, IOException {
+        if (!(wagon instanceof StreamingWagon)) {
+            File f = File.createTempFile("staging-plugin", ".tmp", spoolDirectory);
+
+            try {
+                wagon.get(path, f);
+            } catch (WagonException | RuntimeException e) {
+                f.delete();
+
+                throw e;
+            }
+
+            addSpooled(path, f);
+        } else if (exclusive && shards.size() == 1 && shards.get(0).scatter == null && format.isSizeDeferred()) {
+            synchronized (this) {
+                ArchiveOutputStream<ArchiveEntry> aos = shards.get(0).out;
+
+                ArchiveEntry entry = newEntry(path, stage(path), ArchiveEntry.SIZE_UNKNOWN);
+
+                aos.putArchiveEntry(entry);
+
+                Checksums c = startChecksums(path);
+
+                OutputStream out = CloseShieldOutputStream.wrap(aos);
+
+                try {
+                    ((StreamingWagon) wagon).getToStream(path, c == null ? out : c.wrap(out));
+                } finally {
+                    // Closed even when the download failed, so that the archive can take the next attempt
+                    aos.closeArchiveEntry();
+                }
+
+                if (c != null) {
+                    recordChecksums(entry.getName(), c);
+                }
+            }
+        } else {
+            DeferredFileOutputStream buffer = DeferredFileOutputStream.builder()
+                    .setThreshold(SPOOL_THRESHOLD)
+                    .setPrefix("staging-plugin")
+                    .setSuffix(".tmp")
+                    .setDirectory(spoolDirectory)
+                    .get();
+
+            boolean added = false;
+
+            try {
+                ((StreamingWagon) wagon).getToStream(path, buffer);
+
+                buffer.close();
+
+                if (buffer.isInMemory()) {
+                    byte[] data = buffer.getData();
+
+                    add(path, data.length, () -> new ByteArrayInputStream(data));
+                } else {
+                    addSpooled(path, buffer.getFile());
+                }
+
+                added = true;
+            } finally {
+                buffer.close();
+
+                if (!added && !buffer.isInMemory()) {
+                    buffer.getFile().delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the directories holding the entries of the archive, without their parents, in sorted order
+     */
+    synchronized Iterable<String> getDirectories() {
+        PathSet directories = new PathSet();
+
+        String last = null;
+
+        // Sorted, so the entries of a directory come one after the other
+        for (String name : entries) {
+            int idx = name.lastIndexOf('/');
+
+            String directory = idx > 0 ? name.substring(0, idx) : null;
+
+            if (directory != null && !directory.equals(last)) {
+                directories.add(directory);
+
+                last = directory;
+            }
+        }
+
+        return directories;
+    }
+
+    /**
+     * @return the commands renaming the in-process version directories, in sorted order
+     */
+    synchronized Iterable<String> getMoveCommands() {
+        return moveCommands;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            for (Shard shard : shards) {
+                if (shard.scatter == null) {
+                    continue;
+                }
+
+                try {
+                    shard.scatter.writeTo((ZipArchiveOutputStream) (ArchiveOutputStream<?>) shard.out);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    throw new InterruptedIOException("Interrupted while compressing the archive");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) cause).getCause();
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+
+                    throw new IOException(cause.getMessage(), cause);
+                }
+            }
+
+            for (Map.Entry<String, String> checksum : generatedChecksums.entrySet()) {
+                if (!entries.contains(checksum.getKey())) {
+                    entries.add(checksum.getKey());
+
+                    byte[] content = checksum.getValue().getBytes(StandardCharsets.US_ASCII);
+
+                    ArchiveOutputStream<ArchiveEntry> out = pick(content.length).out;
+
+                    out.putArchiveEntry(newEntry(checksum.getKey(), checksum.getKey(), content.length));
+
+                    out.write(content);
+
+                    out.closeArchiveEntry();
+
+                    if (recordingSha1s) {
+                        Checksums c = checksums.get().computeIfAbsent(
+                                Collections.singletonList(RepositoryCopier.SHA1), Checksums::new);
+
+                        c.reset();
+                        c.update(content, 0, content.length);
+
+                        recordChecksums(checksum.getKey(), c);
+                    }
+                }
+            }
+        } finally {
+            closeShards();
+        }
+    }
+
+    /**
+     * Stops the compression threads, which are done unless something failed, and closes the archives.
+     */
+    private void closeShards() throws IOException {
+        if (compression != null) {
+            compression.shutdownNow();
+        }
+
+        IOException failure = null;
+
+        for (Shard shard : shards) {
+            try {
+                shard.out.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Adds a temporary file, which is deleted once it has been written to the archive.
+     */
+    private void addSpooled(String path, File file) throws IOException {
+        add(path, file.length(), () -> Files.newInputStream(file.toPath(), StandardOpenOption.DELETE_ON_CLOSE));
+    }
+
+    private void add(String path, long size, IOSupplier<InputStream> content) throws IOException {
+        Shard shard;
+
+        synchronized (this) {
+            shard = pick(size);
+        }
+
+        if (shard.scatter != null) {
+            synchronized (this) {
+                ZipArchiveEntry entry = (ZipArchiveEntry) newEntry(path, stage(path), size);
+
+                // Runs on a compression thread
+                shard.scatter.addArchiveEntry(entry, () -> {
+                    try {
+                        return digesting(path, entry.getName(), content.get());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+
+            return;
+        }
+
+        synchronized (this) {
+            ArchiveEntry entry = newEntry(path, stage(path), size);
+
+            shard.out.putArchiveEntry(entry);
+
+            Checksums c = startChecksums(path);
+
+            try (InputStream is = content.get()) {
+                IOUtils.copyLarge(c == null ? is : c.wrap(is), shard.out, buffer);
+            }
+
+            shard.out.closeArchiveEntry();
+
+            if (c != null) {
+                recordChecksums(entry.getName(), c);
+            }
+        }
+    }
+
+    /**
+     * @param size the number of bytes about to be added
+     * @return the archive holding the fewest bytes so far
+     */
+    private Shard pick(long size) {
+        Shard smallest = shards.get(0);
+
+        for (Shard shard : shards) {
+            if (shard.size < smallest.size) {
+                smallest = shard;
+            }
+        }
+
+        smallest.size += size;
+
+        return smallest;
+    }
+
+    private InputStream digesting(String path, String name, InputStream is) {
+        Checksums c = startChecksums(path);
+
+        if (c == null) {
+            return is;
+        }
+
+        return new FilterInputStream(c.wrap(is)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+
+                recordChecksums(name, c);
+            }
+        };
+    }
+
+    private ArchiveEntry newEntry(String path, String name, long size) {
+        entries.add(name);
+
+        return format.newEntry(name, size, isCompressed(path));
+    }
+
+    private static boolean isCompressed(String path) {
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the reset checksums of the current thread, or <code>null</code> if none are computed for the path
+     */
+    private Checksums startChecksums(String path) {
+        List<String> algorithms = new ArrayList<>();
+
+        // The checksums of the metadata are written when it is merged
+        if (!path.substring(path.lastIndexOf('/') + 1).startsWith(RepositoryCopier.MAVEN_METADATA)
+                && !path.endsWith("." + RepositoryCopier.MD5)
+                && !path.endsWith("." + RepositoryCopier.SHA1)
+                && !path.endsWith("." + RepositoryCopier.SHA256)
+                && !path.endsWith("." + RepositoryCopier.SHA512)) {
+            algorithms.addAll(generated);
+        }
+
+        if (recordingSha1s) {
+            algorithms.add(RepositoryCopier.SHA1);
+        }
+
+        if (algorithms.isEmpty()) {
+            return null;
+        }
+
+        Checksums c = checksums.get().computeIfAbsent(algorithms, Checksums::new);
+        c.reset();
+
+        return c;
+    }
+
+    private void recordChecksums(String name, Checksums c) {
+        for (Map.Entry<String, String> checksum : c.digest().entrySet()) {
+            // SHA-1 checksum files are never generated, every deployment carries them
+            if (checksum.getKey().equals(RepositoryCopier.SHA1)) {
+                sha1s.put(name, checksum.getValue());
+            } else {
+                generatedChecksums.put(name + "." + checksum.getKey(), checksum.getValue());
+            }
+        }
+    }
+
+    private String stage(String path) {
+        // We are marking any version directories with the in-process flag so that
+        // anything being unpacked on the target side will not be recognized by Maven
+        // and so users cannot download partially uploaded files.
+
+        String vtag = "/" + version;
+
+        String s = path.replace(vtag + "/", vtag + IN_PROCESS_MARKER + "/");
+
+        int idx = s.indexOf(IN_PROCESS_MARKER);
+
+        if (idx > 0) {
+            String d = s.substring(0, idx);
+
+            if (existingDirectories.contains(d)) {
+                // rmdir sorts after all the mv commands
+                moveCommands.add("mv " + s + " " + path);
+                moveCommands.add("rmdir " + d + IN_PROCESS_MARKER);
+            } else {
+                moveCommands.add("mv " + d + IN_PROCESS_MARKER + " " + d);
+            }
+        }
+
+        return s;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.CommandExecutionException;
+import org.apache.maven.wagon.CommandExecutor;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.StreamingWagon;
+import org.apache.maven.wagon.Streams;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+
+/**
+ * Looks up the SHA-1 checksums of files in the target repository. When the target Wagon can execute commands,
+ * the checksums are computed on the target with <code>sha1sum</code>, or <code>shasum</code> or <code>sha1</code>
+ * where there is no <code>sha1sum</code>, for many files per command. Otherwise the <code>.sha1</code> file next to
+ * every file is downloaded.
+ */
+class TargetChecksums {
+    /**
+     * Keeps the generated command lines well below the limits of common shells.
+     */
+    static final int MAX_COMMAND_LENGTH = 32 * 1024;
+
+    /**
+     * Prints the path of the first command found that computes SHA-1 checksums, and fails if there is none.
+     */
+    private static final String FIND_SHA1_COMMAND = "command -v sha1sum || command -v shasum || command -v sha1";
+
+    /**
+     * A line of <code>sha1sum</code> or <code>shasum</code>, or of <code>sha1 -r</code>, which separates the
+     * checksum from the path with a single space.
+     */
+    private static final Pattern SHA1SUM_LINE = Pattern.compile("^([0-9a-fA-F]{40}) [ *]?(.+)$");
+
+    private final Wagon wagon;
+
+    private final String basedir;
+
+    /**
+     * The command computing the checksums on the target machine, or <code>""</code> if it has none. Looked up on
+     * first use.
+     */
+    private String sha1Command;
+
+    /**
+     * @param wagon a Wagon connected to the target repository
+     * @param basedir the directory of the target repository on the target machine
+     */
+    TargetChecksums(Wagon wagon, String basedir) {
+        this.wagon = wagon;
+        this.basedir = basedir;
+    }
+
+    /**
+     * @param paths the paths of the files, relative to the repository root
+     * @return the SHA-1 checksum of every file that exists in the target repository, keyed by path
+     */
+    Map<String, String> fetch(Iterable<String> paths) throws WagonException, IOException {
+        if (canCompute()) {
+            return compute((CommandExecutor) wagon, paths);
+        } else {
+            return download(paths);
+        }
+    }
+
+    /**
+     * @return whether the checksums are computed on the target machine, rather than read from the checksum files
+     */
+    boolean canCompute() {
+        if (!(wagon instanceof CommandExecutor)) {
+            return false;
+        }
+
+        if (sha1Command == null) {
+            String found;
+
+            try {
+                found = ((CommandExecutor) wagon)
+                        .executeCommand(FIND_SHA1_COMMAND, false)
+                        .getOut()
+                        .trim();
+            } catch (CommandExecutionException e) {
+                found = "";
+            }
+
+            switch (found.substring(found.lastIndexOf('/') + 1)) {
+                case "sha1sum":
+                    sha1Command = "sha1sum";
+                    break;
+                case "shasum":
+                    sha1Command = "shasum -a 1";
+                    break;
+                case "sha1":
+                    sha1Command = "sha1 -r";
+                    break;
+                default:
+                    sha1Command = "";
+            }
+        }
+
+        return !sha1Command.isEmpty();
+    }
+
+    private Map<String, String> compute(CommandExecutor executor, Iterable<String> paths)
+            throws WagonException {
+        Map<String, String> checksums = new HashMap<>();
+
+        String prefix = "cd " + ShellCommands.quote(basedir) + " && " + sha1Command + " --";
+
+        StringBuilder command = new StringBuilder(prefix);
+
+        for (String path : paths) {
+            if (command.length() + path.length() + 3 > MAX_COMMAND_LENGTH) {
+                run(executor, command.toString(), checksums);
+
+                command.setLength(0);
+                command.append(prefix);
+            }
+
+            command.append(' ').append(ShellCommands.quote(path));
+        }
+
+        if (command.length() > prefix.length()) {
+            run(executor, command.toString(), checksums);
+        }
+
+        return checksums;
+    }
+
+    private void run(CommandExecutor executor, String command, Map<String, String> checksums)
+            throws WagonException {
+        // Files missing on the target make the command fail, they are simply left out of its output
+        Streams streams = executor.executeCommand(command, true);
+
+        for (String line : streams.getOut().split("\n")) {
+            Matcher matcher = SHA1SUM_LINE.matcher(line.trim());
+
+            if (matcher.matches()) {
+                checksums.put(matcher.group(2), matcher.group(1).toLowerCase());
+            }
+        }
+    }
+
+    private Map<String, String> download(Iterable<String> paths) throws WagonException, IOException {
+        Map<String, String> checksums = new HashMap<>();
+
+        for (String path : paths) {
+            String sha1 = readChecksumFile(wagon, path + "." + RepositoryCopier.SHA1);
+
+            if (sha1 != null) {
+                checksums.put(path, sha1);
+            }
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Reads a checksum file such as <code>.sha1</code>.
+     *
+     * @param wagon a connected Wagon
+     * @param path the path of the checksum file, relative to the repository root
+     * @return the checksum in lower case, or <code>null</code> if the checksum file does not exist
+     */
+    static String readChecksumFile(Wagon wagon, String path) throws WagonException, IOException {
+        String content;
+
+        try {
+            if (wagon instanceof StreamingWagon) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                ((StreamingWagon) wagon).getToStream(path, out);
+
+                content = new String(out.toByteArray(), StandardCharsets.US_ASCII);
+            } else {
+                File f = File.createTempFile("staging-plugin", ".sha1");
+
+                try {
+                    wagon.get(path, f);
+
+                    content = FileUtils.readFileToString(f, StandardCharsets.US_ASCII);
+                } finally {
+                    f.delete();
+                }
+            }
+        } catch (ResourceDoesNotExistException e) {
+            return null;
+        }
+
+        // The checksum may be followed by the file name
+        return content.trim().split("\\s+")[0].toLowerCase();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the files downloaded to the work directory, so that an interrupted run can be resumed without
+ * downloading them again.
+ * <p>
+ * The manifest is a text file with one line per transfer: the state, the size, the SHA-1 checksum and the path,
+ * separated by tabs. Lines are appended as transfers start and complete, so the manifest survives a crash;
+ * the last line for a path wins. It is rewritten with one line per path when closed.
+ * </p>
+ * <p>
+ * Unlike the paths of a copy, which are kept in a {@link PathSet}, the entries are kept in memory in full.
+ * </p>
+ */
+class TransferManifest implements Closeable {
+    enum State {
+        /**
+         * The transfer has started, the local file may be incomplete.
+         */
+        PENDING,
+
+        /**
+         * The file has been downloaded completely.
+         */
+        DOWNLOADED
+    }
+
+    static final class Entry {
+        private final State state;
+
+        private final long size;
+
+        private final String sha1;
+
+        Entry(State state, long size, String sha1) {
+            this.state = state;
+            this.size = size;
+            this.sha1 = sha1;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getSha1() {
+            return sha1;
+        }
+    }
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Writer log;
+
+    /**
+     * Opens a manifest.
+     *
+     * @param file the manifest file
+     * @param load whether to read the entries of an existing manifest, otherwise it is started afresh
+     */
+    TransferManifest(File file, boolean load) throws IOException {
+        this.file = file;
+
+        if (load && file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+
+                    // A partially written last line is simply ignored
+                    if (fields.length == 4) {
+                        try {
+                            entries.put(
+                                    fields[3],
+                                    new Entry(State.valueOf(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                        } catch (IllegalArgumentException e) {
+                            // ignore the line
+                        }
+                    }
+                }
+            }
+        }
+
+        this.log = Files.newBufferedWriter(
+                file.toPath(),
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                load ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @param path the path of a file, relative to the repository root
+     * @return the last recorded state of the file, or <code>null</code> if it was never transferred
+     */
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Records the state of a file.
+     *
+     * @param path the path of the file, relative to the repository root
+     * @param state the state of the file
+     * @param size the size of the local file, or <code>-1</code> if unknown
+     * @param sha1 the SHA-1 checksum of the local file, or <code>-</code> if unknown
+     */
+    synchronized void record(String path, State state, long size, String sha1) throws IOException {
+        entries.put(path, new Entry(state, size, sha1));
+
+        // We use an explicit unix '\n' line-ending here so that the manifest can be moved between machines.
+        log.write(state + "\t" + size + "\t" + sha1 + "\t" + path + "\n");
+        log.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet()) {
+                Entry entry = e.getValue();
+
+                writer.write(entry.state + "\t" + entry.size + "\t" + entry.sha1 + "\t" + e.getKey() + "\n");
+            }
+        }
+    }
+}
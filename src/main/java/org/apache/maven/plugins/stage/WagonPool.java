@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Keeps connected Wagons around once they are released, so that later phases of a copy, and later copies, reuse
+ * them instead of connecting again. For SSH and TLS connections that spares a handshake per connection.
+ * <p>
+ * Wagons are pooled by repository id, URL and credentials. A Wagon that was idle for longer than the idle timeout
+ * is disconnected, and one that was idle for more than a few seconds is checked before it is handed out again.
+ * A pool with an idle timeout of <code>0</code> disconnects Wagons as soon as they are released.
+ * </p>
+ * <p>
+ * A Wagon taken from the pool is used by one thread at a time, and must be given back without any transfer
+ * listeners added to it.
+ * </p>
+ */
+class WagonPool implements Closeable {
+    /**
+     * How long a Wagon may be idle before it is checked when handed out again.
+     */
+    private static final long VALIDATION_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+    private final WagonManager wagonManager;
+
+    private final Logger logger;
+
+    private final Map<String, Deque<Idle>> idle = new HashMap<>();
+
+    private long idleTimeout;
+
+    private ScheduledExecutorService evictor;
+
+    private boolean closed;
+
+    /**
+     * Creates a pool that does not keep any Wagon.
+     *
+     * @param wagonManager provides the Wagons and the credentials of the repositories
+     */
+    WagonPool(WagonManager wagonManager) {
+        this(wagonManager, 0, null);
+    }
+
+    /**
+     * @param wagonManager provides the Wagons and the credentials of the repositories
+     * @param idleTimeout the number of milliseconds to keep an unused Wagon connected
+     * @param logger the logger, or <code>null</code> to not log anything
+     */
+    WagonPool(WagonManager wagonManager, long idleTimeout, Logger logger) {
+        this.wagonManager = wagonManager;
+        this.logger = logger;
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    /**
+     * Changes the time to keep unused Wagons connected. Wagons that have been idle for longer are disconnected.
+     *
+     * @param idleTimeout the number of milliseconds to keep an unused Wagon connected
+     */
+    void setIdleTimeout(long idleTimeout) {
+        synchronized (idle) {
+            this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        }
+
+        evict();
+    }
+
+    /**
+     * Takes a Wagon connected to a repository from the pool, or connects a new one.
+     *
+     * @param repository the repository
+     * @return a connected Wagon, to be given back with {@link #release(Wagon)} or {@link #invalidate(Wagon)}
+     * @throws WagonException if no Wagon could be connected
+     */
+    Wagon acquire(Repository repository) throws WagonException {
+        AuthenticationInfo auth = wagonManager.getAuthenticationInfo(repository.getId());
+
+        String key = key(repository, auth);
+
+        Idle candidate;
+
+        while ((candidate = poll(key)) != null) {
+            if (System.nanoTime() - candidate.since < VALIDATION_INTERVAL || isHealthy(candidate.wagon)) {
+                debug("Reusing the connection to " + repository.getUrl());
+
+                return candidate.wagon;
+            }
+
+            disconnect(candidate.wagon);
+        }
+
+        Wagon wagon = wagonManager.getWagon(repository);
+
+        wagon.connect(repository, auth);
+
+        return wagon;
+    }
+
+    /**
+     * Gives a Wagon back to the pool, or disconnects it if the pool does not keep Wagons.
+     *
+     * @param wagon a Wagon taken from the pool
+     */
+    void release(Wagon wagon) {
+        Repository repository = wagon.getRepository();
+
+        String key = key(repository, wagonManager.getAuthenticationInfo(repository.getId()));
+
+        synchronized (idle) {
+            if (idleTimeout > 0 && !closed) {
+                idle.computeIfAbsent(key, k -> new ArrayDeque<>()).push(new Idle(wagon));
+
+                startEvictor();
+
+                return;
+            }
+        }
+
+        disconnect(wagon);
+    }
+
+    /**
+     * Disconnects a Wagon taken from the pool instead of giving it back, after it failed in a way that may have
+     * broken its connection.
+     *
+     * @param wagon a Wagon taken from the pool
+     */
+    void invalidate(Wagon wagon) {
+        disconnect(wagon);
+    }
+
+    /**
+     * Disconnects all unused Wagons. Wagons released afterwards, by transfers that were still running, are
+     * disconnected too.
+     */
+    @Override
+    public void close() {
+        List<Wagon> wagons = new ArrayList<>();
+
+        synchronized (idle) {
+            for (Deque<Idle> deque : idle.values()) {
+                for (Idle entry : deque) {
+                    wagons.add(entry.wagon);
+                }
+            }
+
+            idle.clear();
+
+            closed = true;
+
+            if (evictor != null) {
+                evictor.shutdownNow();
+
+                evictor = null;
+            }
+        }
+
+        wagons.forEach(this::disconnect);
+    }
+
+    /**
+     * Disconnects the Wagons that have been unused for longer than the idle timeout.
+     */
+    void evict() {
+        List<Wagon> evicted = new ArrayList<>();
+
+        synchronized (idle) {
+            long now = System.nanoTime();
+
+            for (Iterator<Deque<Idle>> i = idle.values().iterator(); i.hasNext(); ) {
+                Deque<Idle> deque = i.next();
+
+                // The most recently released Wagons are at the head
+                while (!deque.isEmpty() && now - deque.peekLast().since >= idleTimeout) {
+                    evicted.add(deque.pollLast().wagon);
+                }
+
+                if (deque.isEmpty()) {
+                    i.remove();
+                }
+            }
+        }
+
+        evicted.forEach(this::disconnect);
+    }
+
+    /**
+     * @return the number of unused Wagons in the pool
+     */
+    int getIdleCount() {
+        synchronized (idle) {
+            return idle.values().stream().mapToInt(Deque::size).sum();
+        }
+    }
+
+    private Idle poll(String key) {
+        synchronized (idle) {
+            Deque<Idle> deque = idle.get(key);
+
+            return deque != null ? deque.poll() : null;
+        }
+    }
+
+    /**
+     * Must be called holding the lock on {@link #idle}.
+     */
+    private void startEvictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "wagon-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            long period = Math.max(TimeUnit.SECONDS.toNanos(1), idleTimeout / 2);
+
+            evictor.scheduleAtFixedRate(this::evict, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private boolean isHealthy(Wagon wagon) {
+        try {
+            // Any answer will do, only a broken connection fails
+            wagon.resourceExists("");
+
+            return true;
+        } catch (WagonException | RuntimeException e) {
+            debug("Dropping a broken connection to " + wagon.getRepository().getUrl() + ": " + e.getMessage());
+
+            return false;
+        }
+    }
+
+    private void disconnect(Wagon wagon) {
+        try {
+            wagon.disconnect();
+        } catch (WagonException | RuntimeException e) {
+            debug("Failed to disconnect from " + wagon.getRepository().getUrl() + ": " + e.getMessage());
+        }
+    }
+
+    private void debug(String message) {
+        if (logger != null) {
+            logger.debug(message);
+        }
+    }
+
+    private static String key(Repository repository, AuthenticationInfo auth) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(repository.getId()).append('\n').append(repository.getUrl());
+
+        if (auth != null) {
+            // The password itself is not kept
+            key.append('\n').append(auth.getUserName());
+            key.append('\n').append(Objects.hashCode(auth.getPassword()));
+            key.append('\n').append(auth.getPrivateKey());
+            key.append('\n').append(Objects.hashCode(auth.getPassphrase()));
+        }
+
+        return key.toString();
+    }
+
+    private static final class Idle {
+        private final Wagon wagon;
+
+        private final long since = System.nanoTime();
+
+        private Idle(Wagon wagon) {
+            this.wagon = wagon;
+        }
+    }
+}
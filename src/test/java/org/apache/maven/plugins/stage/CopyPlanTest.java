@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CopyPlanTest extends TestCase {
+    private static final String VERSION = "1.0";
+
+    public void testGroupMetadataGoesToTheFirstPart() {
+        CopyPlan plan = new CopyPlan();
+
+        // A plugin group: the prefixes of its plugins are in the metadata of the group
+        plan.add("org/plugins/maven-metadata.xml", 100, null);
+        plan.add("org/plugins/maven-metadata.xml.sha1", 40, null);
+
+        for (String plugin : new String[] {"a-plugin", "b-plugin", "c-plugin"}) {
+            String artifact = "org/plugins/" + plugin;
+
+            plan.add(artifact + "/maven-metadata.xml", 100, null);
+            plan.add(artifact + "/" + VERSION + "/" + plugin + "-" + VERSION + ".jar", 1000, null);
+        }
+
+        // The largest artifact goes to the first part, which gets the metadata of the group all the same
+        plan.add("org/big/" + VERSION + "/big-" + VERSION + ".jar", 10000, null);
+
+        List<String> all = new ArrayList<>();
+
+        for (int part = 1; part <= 3; part++) {
+            List<String> paths = plan.paths(part, 3, VERSION);
+
+            assertEquals(
+                    "part " + part,
+                    part == 1,
+                    paths.contains("org/plugins/maven-metadata.xml")
+                            && paths.contains("org/plugins/maven-metadata.xml.sha1"));
+
+            for (String plugin : new String[] {"a-plugin", "b-plugin", "c-plugin"}) {
+                String artifact = "org/plugins/" + plugin;
+
+                assertEquals(
+                        artifact,
+                        paths.contains(artifact + "/maven-metadata.xml"),
+                        paths.contains(artifact + "/" + VERSION + "/" + plugin + "-" + VERSION + ".jar"));
+            }
+
+            all.addAll(paths);
+        }
+
+        assertEquals(plan.size(), all.size());
+    }
+}
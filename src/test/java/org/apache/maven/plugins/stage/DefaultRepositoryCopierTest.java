@@ -0,0 +1,629 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.apache.maven.wagon.CommandExecutionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.Streams;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+
+/**
+ * Runs complete copies from the test staging repository to a local target repository, with the
+ * {@link LocalCommandWagon} standing in for scp.
+ */
+public class DefaultRepositoryCopierTest extends TestCase {
+    private static final String VERSION = "2.0.6";
+
+    private static final String[] ARTIFACTS = {"maven-artifact", "maven-artifact-manager", "maven-artifact-test"};
+
+    private DefaultRepositoryCopier copier;
+
+    private Repository sourceRepository;
+
+    private Repository targetRepository;
+
+    private File targetRepo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        copier = new DefaultRepositoryCopier();
+        copier.enableLogging(new ConsoleLogger(Logger.LEVEL_WARN, "test"));
+
+        setWagonManager(FileWagonManager.create());
+
+        targetRepo = new File("target/copier-test/" + getName()).getAbsoluteFile();
+
+        FileUtils.deleteDirectory(targetRepo);
+        FileUtils.copyDirectory(new File("src/test/target-repository"), targetRepo);
+
+        sourceRepository = new Repository("source", new File("src/test/staging-repository").toURI().toString());
+        targetRepository = new Repository("target", targetRepo.toURI().toString());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        copier.dispose();
+
+        super.tearDown();
+    }
+
+    public void testCopy() throws Exception {
+        copier.copy(sourceRepository, targetRepository, VERSION);
+
+        assertCopied();
+    }
+
+    public void testStreamingCopy() throws Exception {
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setStreaming(true);
+        configuration.setScanThreads(2);
+        configuration.setDownloadThreads(3);
+        configuration.setMetadataThreads(2);
+        configuration.setCompressionThreads(2);
+
+        File reportFile = new File("target/copier-test/" + getName() + "-report.json");
+        reportFile.delete();
+        configuration.setReportFile(reportFile);
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+
+        String report = FileUtils.readFileToString(reportFile, StandardCharsets.UTF_8);
+
+        for (String phase : new String[] {"scan", "download", "metadata", "archive", "upload", "unzip", "rename"}) {
+            assertTrue(phase, report.contains("\"" + phase + "\": {"));
+        }
+
+        assertTrue(report, report.contains("\"outcome\": \"success\""));
+    }
+
+    public void testShardedCopy() throws Exception {
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setShards(3);
+        configuration.setCompressionThreads(4);
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+
+        for (int i = 1; i <= 3; i++) {
+            String shard = "staging-plugin-" + VERSION + "-" + i + ".zip";
+
+            assertTrue(shard, new File(System.getProperty("java.io.tmpdir"), shard).length() > 0);
+            assertFalse(shard, new File(targetRepo, shard).exists());
+        }
+    }
+
+    public void testTarCopyIsUnpackedAsItIsUploaded() throws Exception {
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setArchiveFormat("tgz");
+        configuration.setShards(2);
+        configuration.setStreaming(true);
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+
+        for (int i = 1; i <= 2; i++) {
+            String shard = "staging-plugin-" + VERSION + "-" + i + ".tar.gz";
+
+            assertTrue(shard, new File(System.getProperty("java.io.tmpdir"), shard).length() > 0);
+            assertFalse(shard, new File(targetRepo, shard).exists());
+            assertFalse(shard, new File(targetRepo, shard + ".status").exists());
+            assertFalse(shard, new File(targetRepo, shard + ".log").exists());
+        }
+    }
+
+    public void testPlanCopiedInPartsIsCommittedOnceAllAreUnpacked() throws Exception {
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setPlan(new File("target/copier-test/" + getName() + "-plan.txt"));
+        configuration.setArchiveFormat("tar");
+
+        copier.plan(sourceRepository, VERSION, configuration);
+
+        CopyPlan plan = CopyPlan.read(configuration.getPlan());
+        String jar = "org/apache/maven/maven-artifact/" + VERSION + "/maven-artifact-" + VERSION + ".jar";
+        assertTrue(plan.get(jar).getSize() > 0);
+        assertEquals(40, plan.get(jar).getSha1().length());
+
+        configuration.setPlanParts(2);
+
+        List<String> first = plan.paths(1, 2, VERSION);
+        List<String> second = plan.paths(2, 2, VERSION);
+        assertEquals(plan.size(), first.size() + second.size());
+        assertEquals(first.contains(jar), first.contains("org/apache/maven/maven-artifact/maven-metadata.xml"));
+
+        configuration.setPlanPart(1);
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        try {
+            copier.commit(Collections.singletonList(targetRepository), VERSION, configuration);
+            fail("Part 2 is missing");
+        } catch (WagonException e) {
+            // expected
+        }
+
+        // Nothing is moved into place before the commit
+        assertTrue(new File(targetRepo, "org/apache/maven/maven-artifact/2.0.5").exists());
+        assertFalse(new File(targetRepo, "org/apache/maven/maven-artifact/" + VERSION).exists());
+
+        configuration.setPlanPart(2);
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        copier.commit(Collections.singletonList(targetRepository), VERSION, configuration);
+
+        assertCopied();
+        assertFalse(new File(targetRepo, "staging-plugin-" + VERSION + "-part-1-of-2-rename.sh").exists());
+        assertFalse(new File(targetRepo, "staging-plugin-" + VERSION + "-part-2-of-2-rename.sh").exists());
+    }
+
+    public void testFanOutToSeveralTargets() throws Exception {
+        File mirrorRepo = new File("target/copier-test/" + getName() + "-mirror").getAbsoluteFile();
+        FileUtils.deleteDirectory(mirrorRepo);
+        FileUtils.copyDirectory(new File("src/test/target-repository"), mirrorRepo);
+
+        // The mirror has a newer release, which its merged metadata must keep
+        String metadataPath = "org/apache/maven/maven-artifact/" + RepositoryCopier.MAVEN_METADATA;
+        File mirrorMetadata = new File(mirrorRepo, metadataPath);
+        String content = FileUtils.readFileToString(mirrorMetadata, StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(
+                mirrorMetadata,
+                content.replace("<versions>", "<versions>\n<version>3.0</version>"),
+                StandardCharsets.UTF_8);
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setShards(2);
+
+        copier.copy(
+                sourceRepository,
+                Arrays.asList(targetRepository, new Repository("mirror", mirrorRepo.toURI().toString())),
+                VERSION,
+                configuration);
+
+        assertCopied();
+        assertFalse(FileUtils.readFileToString(new File(targetRepo, metadataPath), StandardCharsets.UTF_8)
+                .contains("<version>3.0</version>"));
+
+        targetRepo = mirrorRepo;
+
+        assertCopied();
+
+        assertTrue(FileUtils.readFileToString(mirrorMetadata, StandardCharsets.UTF_8)
+                .contains("<version>3.0</version>"));
+        assertFalse(new File(mirrorRepo, "staging-plugin-" + VERSION + "-rename.sh").exists());
+    }
+
+    public void testDirectPublishToTargetWithoutCommands() throws Exception {
+        setWagonManager(FileWagonManager.create(FileWagon::new));
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setUploadThreads(3);
+        configuration.setChecksumAlgorithms(Arrays.asList(RepositoryCopier.SHA1, RepositoryCopier.SHA256));
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+
+        assertTrue(new File(targetRepo, "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.jar.sha256")
+                .isFile());
+        assertFalse(new File(targetRepo, "staging-plugin-" + VERSION + "-rename.sh").exists());
+    }
+
+    public void testFanOutToSeveralTargetsWithoutCommands() throws Exception {
+        setWagonManager(FileWagonManager.create(FileWagon::new));
+
+        File mirrorRepo = new File("target/copier-test/" + getName() + "-mirror").getAbsoluteFile();
+        FileUtils.deleteDirectory(mirrorRepo);
+        FileUtils.copyDirectory(new File("src/test/target-repository"), mirrorRepo);
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setChecksumAlgorithms(Arrays.asList(RepositoryCopier.SHA1, RepositoryCopier.SHA256));
+
+        copier.copy(
+                sourceRepository,
+                Arrays.asList(targetRepository, new Repository("mirror", mirrorRepo.toURI().toString())),
+                VERSION,
+                configuration);
+
+        for (File repo : Arrays.asList(targetRepo, mirrorRepo)) {
+            targetRepo = repo;
+
+            assertCopied();
+
+            assertTrue(new File(repo, "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.jar.sha256")
+                    .isFile());
+        }
+    }
+
+    public void testResumedCopySkipsDownloadedFiles() throws Exception {
+        String jar = "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.jar";
+        String stale = "org/apache/maven/maven-artifact/2.0.6/removed-from-source.jar";
+
+        // The checksums of the test repository are made up, resuming needs a real one
+        File sourceRepo = new File("target/copier-test/source").getAbsoluteFile();
+        FileUtils.deleteDirectory(sourceRepo);
+        FileUtils.copyDirectory(new File("src/test/staging-repository"), sourceRepo);
+        byte[] content = FileUtils.readFileToByteArray(new File(sourceRepo, jar));
+        byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(content);
+        FileUtils.writeStringToFile(
+                new File(sourceRepo, jar + ".sha1"),
+                String.format("%040x", new BigInteger(1, sha1)),
+                StandardCharsets.US_ASCII);
+        sourceRepository = new Repository("source", sourceRepo.toURI().toString());
+
+        copier.copy(sourceRepository, targetRepository, VERSION);
+
+        File workdir = new File(System.getProperty("java.io.tmpdir"), "staging-plugin-" + VERSION);
+        File downloaded = new File(workdir, jar);
+        assertTrue(downloaded.setLastModified(1000L));
+        FileUtils.touch(new File(workdir, stale));
+
+        FileUtils.deleteDirectory(targetRepo);
+        FileUtils.copyDirectory(new File("src/test/target-repository"), targetRepo);
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setResume(true);
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+        assertEquals(1000L, downloaded.lastModified());
+        assertFalse(new File(targetRepo, stale).exists());
+    }
+
+    public void testDeltaCopyLeavesOutIdenticalFiles() throws Exception {
+        copier.copy(sourceRepository, targetRepository, VERSION);
+
+        File jar = new File(targetRepo, "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.jar");
+        File pom = new File(targetRepo, "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.pom");
+        FileUtils.writeStringToFile(pom, "changed", StandardCharsets.UTF_8);
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setDelta(true);
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+
+        File archive = new File(System.getProperty("java.io.tmpdir"), "staging-plugin-" + VERSION + ".zip");
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertNull(zip.getEntry("org/apache/maven/maven-artifact/2.0.6.rip/maven-artifact-2.0.6.jar"));
+            assertNotNull(zip.getEntry("org/apache/maven/maven-artifact/2.0.6.rip/maven-artifact-2.0.6.pom"));
+        }
+
+        assertTrue(jar.exists());
+        assertFalse(FileUtils.readFileToString(pom, StandardCharsets.UTF_8).equals("changed"));
+    }
+
+    public void testCachedMetadataIsNotDownloadedAgain() throws Exception {
+        File cache = new File("target/copier-test/" + getName() + "-cache");
+        FileUtils.deleteDirectory(cache);
+
+        File reportFile = new File("target/copier-test/" + getName() + "-report.json");
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setMetadataCache(cache);
+        configuration.setReportFile(reportFile);
+
+        long metadataFiles;
+        try (Stream<Path> walk = Files.walk(new File("src/test/staging-repository").toPath())) {
+            metadataFiles =
+                    walk.filter(p -> p.endsWith(RepositoryCopier.MAVEN_METADATA)).count();
+        }
+
+        // The checksums of the test repository are made up, so nothing matches the first time
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertTrue(metadataRequests(reportFile) > metadataFiles);
+
+        // The merged metadata is cached as it was published, the second run only gets the checksums
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+        assertEquals(metadataFiles, metadataRequests(reportFile));
+    }
+
+    public void testCorruptMetadataIsReportedPerPath() throws Exception {
+        String[] corrupt = {
+            "org/apache/maven/maven-artifact/maven-metadata.xml",
+            "org/apache/maven/maven-artifact-test/maven-metadata.xml"
+        };
+
+        for (String path : corrupt) {
+            FileUtils.writeStringToFile(new File(targetRepo, path), "<metadata><", StandardCharsets.UTF_8);
+        }
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setMetadataThreads(3);
+
+        try {
+            copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+            fail("Corrupt metadata was merged");
+        } catch (IOException e) {
+            for (String path : corrupt) {
+                assertTrue(e.getMessage(), e.getMessage().contains(path));
+            }
+        }
+    }
+
+    public void testCopyToTargetWithoutSha1sum() throws Exception {
+        // As on a machine where none of the commands computing checksums is installed
+        setWagonManager(FileWagonManager.create(() -> new LocalCommandWagon() {
+            @Override
+            public Streams executeCommand(String command, boolean ignoreFailures) throws CommandExecutionException {
+                return super.executeCommand(
+                        command.replaceAll("(command -v|&&) (sha1sum|shasum|sha1)\\b", "$1 missing-$2"),
+                        ignoreFailures);
+            }
+        }));
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setDelta(true);
+
+        copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+        assertCopied();
+    }
+
+    public void testFileDamagedWhileUnpackingIsNotPublished() throws Exception {
+        String jar = "org/apache/maven/maven-artifact/" + VERSION + RepositoryCopier.IN_PROCESS_MARKER
+                + "/maven-artifact-" + VERSION + ".jar";
+
+        setWagonManager(FileWagonManager.create(() -> new LocalCommandWagon() {
+            @Override
+            public Streams executeCommand(String command, boolean ignoreFailures) throws CommandExecutionException {
+                Streams streams = super.executeCommand(command, ignoreFailures);
+
+                if (command.startsWith("unzip")) {
+                    try {
+                        FileUtils.writeStringToFile(new File(targetRepo, jar), "damaged", StandardCharsets.UTF_8);
+                    } catch (IOException e) {
+                        throw new CommandExecutionException("Cannot damage " + jar, e);
+                    }
+                }
+
+                return streams;
+            }
+        }));
+
+        File cache = new File("target/copier-test/" + getName() + "-cache");
+        FileUtils.deleteDirectory(cache);
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setMetadataCache(cache);
+
+        try {
+            copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+            fail("The damaged file was published");
+        } catch (TransferFailedException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(jar));
+        }
+
+        assertFalse(new File(targetRepo, "org/apache/maven/maven-artifact/" + VERSION).exists());
+
+        // The merged metadata was never published, so only what the target still holds may be cached
+        File[] repositories = cache.listFiles();
+        assertNotNull(repositories);
+        assertEquals(1, repositories.length);
+
+        try (Stream<Path> walk = Files.walk(repositories[0].toPath())) {
+            for (Path entry : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                Path dir = repositories[0].toPath().relativize(entry.getParent());
+                File metadata = new File(new File(targetRepo, dir.toString()), RepositoryCopier.MAVEN_METADATA);
+
+                assertTrue(entry.toString(), FileUtils.contentEquals(metadata, entry.toFile()));
+            }
+        }
+    }
+
+    public void testLaterCopiesReuseConnectionsUntilDisposed() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+
+        setWagonManager(FileWagonManager.create(() -> {
+            connections.incrementAndGet();
+
+            return new LocalCommandWagon();
+        }));
+
+        copier.copy(sourceRepository, targetRepository, VERSION);
+
+        int first = connections.get();
+
+        copier.copy(sourceRepository, targetRepository, VERSION);
+
+        assertCopied();
+        assertTrue(first + " then " + (connections.get() - first), connections.get() - first < first);
+
+        copier.dispose();
+
+        // The idle connections are kept for a minute by default, by a thread evicting them
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("wagon-pool-evictor"))) {
+            assertTrue("The connection pool outlives the copier", System.nanoTime() < deadline);
+
+            Thread.sleep(10);
+        }
+    }
+
+    public void testCopyAsync() throws Exception {
+        Future<Void> copy = copier.copyAsync(
+                sourceRepository, Collections.singletonList(targetRepository), VERSION, new CopyConfiguration());
+
+        copy.get(1, TimeUnit.MINUTES);
+
+        assertCopied();
+
+        assertTrue(copyThreads().allMatch(Thread::isDaemon));
+
+        copier.dispose();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+        while (copyThreads().findAny().isPresent()) {
+            assertTrue("The copy threads outlive the copier", System.nanoTime() < deadline);
+
+            Thread.sleep(10);
+        }
+    }
+
+    private static Stream<Thread> copyThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("staging-plugin-copy-"));
+    }
+
+    public void testMetadataIsMergedWhileDownloadingUntilCancelled() throws Exception {
+        String jar = "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.jar";
+
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        // The download of one jar hangs until the copy is cancelled
+        setWagonManager(FileWagonManager.create(() -> new LocalCommandWagon() {
+            @Override
+            public void get(String resourceName, File destination) throws TransferFailedException,
+                    ResourceDoesNotExistException, AuthorizationException {
+                if (resourceName.equals(jar) && getRepository().getId().equals("source")) {
+                    blocked.countDown();
+
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        throw new TransferFailedException("Interrupted", e);
+                    }
+                }
+
+                super.get(resourceName, destination);
+            }
+        }));
+
+        // Served as if remote, so that the files go through the Wagon rather than being linked
+        sourceRepository = new Repository(
+                "source", "scp://localhost" + new File("src/test/staging-repository").getAbsolutePath());
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setDownloadThreads(2);
+
+        Future<Void> copy = copier.copyAsync(
+                sourceRepository, Collections.singletonList(targetRepository), VERSION, configuration);
+
+        assertTrue(blocked.await(1, TimeUnit.MINUTES));
+
+        // The other artifacts get their metadata merged in the meantime
+        File merged = new File(
+                System.getProperty("java.io.tmpdir"),
+                "staging-plugin-" + VERSION + "/org/apache/maven/maven-artifact-manager/"
+                        + RepositoryCopier.MAVEN_METADATA + RepositoryCopier.IN_PROCESS_MARKER);
+
+        for (int i = 0; i < 600 && !merged.exists(); i++) {
+            Thread.sleep(100);
+        }
+
+        assertTrue(merged.exists());
+        assertFalse(copy.isDone());
+
+        assertTrue(copy.cancel(true));
+
+        for (int i = 0; i < 600 && isCopying(); i++) {
+            Thread.sleep(100);
+        }
+
+        assertFalse(isCopying());
+        assertFalse(new File(targetRepo, "org/apache/maven/maven-artifact-manager/" + VERSION).exists());
+    }
+
+    private static boolean isCopying() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(t -> t.getName().equals("staging-plugin-copy-" + VERSION));
+    }
+
+    private static long metadataRequests(File reportFile) throws IOException {
+        String report = FileUtils.readFileToString(reportFile, StandardCharsets.UTF_8);
+
+        Matcher matcher = Pattern.compile("\"metadata\": \\{[^}]*\"requests\": (\\d+)").matcher(report);
+        assertTrue(report, matcher.find());
+
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private void setWagonManager(WagonManager wagonManager) throws Exception {
+        Field field = DefaultRepositoryCopier.class.getDeclaredField("wagonManager");
+        field.setAccessible(true);
+        field.set(copier, wagonManager);
+    }
+
+    private void assertCopied() throws Exception {
+        for (String artifact : ARTIFACTS) {
+            File basedir = new File(targetRepo, "org/apache/maven/" + artifact);
+
+            assertTrue(new File(basedir, VERSION + "/" + artifact + "-" + VERSION + ".jar").exists());
+            assertFalse(new File(basedir, VERSION + RepositoryCopier.IN_PROCESS_MARKER).exists());
+
+            File file = new File(basedir, RepositoryCopier.MAVEN_METADATA);
+            try (Reader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                Metadata metadata = new MetadataXpp3Reader().read(r);
+
+                assertEquals(VERSION, metadata.getVersioning().getRelease());
+
+                List<String> versions = metadata.getVersioning().getVersions();
+                assertTrue(versions.contains("2.0.5"));
+                assertTrue(versions.contains(VERSION));
+            }
+
+            String sha1 = FileUtils.readFileToString(
+                            new File(basedir, RepositoryCopier.MAVEN_METADATA + ".sha1"), StandardCharsets.UTF_8)
+                    .trim();
+            assertEquals(40, sha1.length());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.authentication.AuthenticationInfo;
+import org.apache.maven.wagon.providers.ssh.interactive.NullInteractiveUserInfo;
+import org.apache.maven.wagon.providers.ssh.jsch.ScpWagon;
+import org.apache.maven.wagon.providers.ssh.knownhost.NullKnownHostProvider;
+import org.apache.maven.wagon.repository.Repository;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.scp.common.ScpTargetStreamResolver;
+import org.apache.sshd.scp.common.helpers.DefaultScpFileOpener;
+import org.apache.sshd.scp.common.helpers.ScpTimestampCommandDetails;
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+
+/**
+ * An SSH server in the test JVM that accepts any password, serves scp and runs every other command with the
+ * local shell, so that the copier can be run against an <code>scp://</code> target without external services.
+ * <p>
+ * Like OpenSSH, its scp writes into a named pipe that is in the way of an uploaded file, rather than refusing to.
+ * </p>
+ */
+final class EmbeddedSshServer implements Closeable {
+    private final SshServer server;
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @param hostKey the file to keep the generated host key in
+     */
+    EmbeddedSshServer(File hostKey) throws IOException {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("localhost");
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(hostKey.toPath()));
+        server.setPasswordAuthenticator((username, password, session) -> true);
+        server.setCommandFactory(new ScpCommandFactory.Builder()
+                .withFileOpener(new PipeFileOpener())
+                .withDelegate((channel, command) ->
+                        new ProcessShellFactory(command, "sh", "-c", command).createShell(channel))
+                .build());
+        server.start();
+    }
+
+    /**
+     * @param basedir the absolute path of the repository on this machine
+     * @return the url of the repository through this server
+     */
+    String getUrl(File basedir) {
+        return "scp://localhost:" + server.getPort() + basedir.getAbsolutePath();
+    }
+
+    /**
+     * @return a {@link WagonManager} that hands out a new {@link ScpWagon} for this server for <code>scp</code>
+     *         repositories, and a new {@link LocalCommandWagon} for the others
+     */
+    WagonManager createWagonManager() {
+        AuthenticationInfo authenticationInfo = new AuthenticationInfo();
+        authenticationInfo.setUserName(System.getProperty("user.name"));
+        authenticationInfo.setPassword("password");
+
+        return (WagonManager) Proxy.newProxyInstance(
+                EmbeddedSshServer.class.getClassLoader(),
+                new Class<?>[] {WagonManager.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getWagon":
+                            String protocol = args[0] instanceof String
+                                    ? (String) args[0]
+                                    : ((Repository) args[0]).getProtocol();
+
+                            return "scp".equals(protocol) ? createScpWagon() : new LocalCommandWagon();
+                        case "getAuthenticationInfo":
+                            return authenticationInfo;
+                        case "toString":
+                            return "EmbeddedSshServer";
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static ScpWagon createScpWagon() {
+        ScpWagon wagon = new ScpWagon();
+        wagon.setKnownHostsProvider(new NullKnownHostProvider());
+        wagon.setInteractiveUserInfo(new NullInteractiveUserInfo());
+        wagon.setPreferredAuthentications("password");
+        wagon.setStrictHostKeyChecking("no");
+        return wagon;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(true);
+    }
+
+    /**
+     * Writes uploads into the named pipes they are aimed at, and everything else as the default does.
+     */
+    private static final class PipeFileOpener extends DefaultScpFileOpener {
+        @Override
+        public ScpTargetStreamResolver createScpTargetStreamResolver(Session session, Path path) throws IOException {
+            ScpTargetStreamResolver delegate = super.createScpTargetStreamResolver(session, path);
+
+            return new ScpTargetStreamResolver() {
+                private Path pipe;
+
+                @Override
+                public OutputStream resolveTargetStream(
+                        Session session,
+                        String name,
+                        long length,
+                        Set<PosixFilePermission> perms,
+                        OpenOption... options)
+                        throws IOException {
+                    Path file = Files.isDirectory(path) ? path.resolve(name) : path;
+
+                    if (Files.exists(file) && !Files.isRegularFile(file) && !Files.isDirectory(file)) {
+                        pipe = file;
+
+                        return Files.newOutputStream(file, StandardOpenOption.WRITE);
+                    }
+
+                    return delegate.resolveTargetStream(session, name, length, perms, options);
+                }
+
+                @Override
+                public void closeTargetStream(
+                        Session session, String name, long length, Set<PosixFilePermission> perms, OutputStream stream)
+                        throws IOException {
+                    if (pipe != null) {
+                        stream.close();
+                    } else {
+                        delegate.closeTargetStream(session, name, length, perms, stream);
+                    }
+                }
+
+                @Override
+                public Path getEventListenerFilePath() {
+                    return pipe != null ? pipe : delegate.getEventListenerFilePath();
+                }
+
+                @Override
+                public void postProcessReceivedData(
+                        String name, boolean preserve, Set<PosixFilePermission> perms, ScpTimestampCommandDetails time)
+                        throws IOException {
+                    if (pipe == null) {
+                        delegate.postProcessReceivedData(name, preserve, perms, time);
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+
+/**
+ * Copies a synthetic staging repository to an <code>scp://</code> target served by an {@link EmbeddedSshServer},
+ * and reports the wall time and peak heap of the run. It is excluded from the default build, run it with
+ * <code>mvn -Pe2e test</code>.
+ * <p>
+ * The size of the run is set with system properties: <code>e2e.files</code> (10000), <code>e2e.depth</code> (3),
+ * <code>e2e.size</code> (4096 bytes per jar), <code>e2e.threads</code> (4) and <code>e2e.format</code>, the format of
+ * the archive (zip). The target repository holds an older version of every artifact, so that all metadata is
+ * merged.
+ * </p>
+ */
+public class EndToEndCopyTest extends TestCase {
+    private static final String VERSION = "2.0";
+
+    private static final String PREVIOUS_VERSION = "1.0";
+
+    /**
+     * The number of files {@link SyntheticRepository} creates for an artifact
+     */
+    private static final int FILES_PER_ARTIFACT = 9;
+
+    public void testCopy() throws Exception {
+        int files = Integer.getInteger("e2e.files", 10000);
+        int depth = Integer.getInteger("e2e.depth", 3);
+        int size = Integer.getInteger("e2e.size", 4096);
+        int threads = Integer.getInteger("e2e.threads", 4);
+
+        int artifacts = Math.max(1, files / FILES_PER_ARTIFACT);
+
+        File basedir = new File("target/e2e").getAbsoluteFile();
+
+        FileUtils.deleteDirectory(basedir);
+
+        SyntheticRepository source =
+                SyntheticRepository.create(new File(basedir, "source"), artifacts, depth, size, VERSION);
+        SyntheticRepository target =
+                SyntheticRepository.create(new File(basedir, "target"), artifacts, depth, size, PREVIOUS_VERSION);
+
+        CopyConfiguration configuration = new CopyConfiguration();
+        configuration.setScanThreads(threads);
+        configuration.setDownloadThreads(threads);
+        configuration.setMetadataThreads(threads);
+        configuration.setCompressionThreads(threads);
+        configuration.setArchiveFormat(System.getProperty("e2e.format", "zip"));
+        configuration.setReportFile(new File(basedir, "report.json"));
+
+        Logger logger = new ConsoleLogger(Logger.LEVEL_INFO, "e2e");
+
+        try (EmbeddedSshServer server = new EmbeddedSshServer(new File(basedir, "hostkey.ser"))) {
+            DefaultRepositoryCopier copier = new DefaultRepositoryCopier();
+            copier.enableLogging(logger);
+
+            Field field = DefaultRepositoryCopier.class.getDeclaredField("wagonManager");
+            field.setAccessible(true);
+            field.set(copier, server.createWagonManager());
+
+            Repository sourceRepository = new Repository("source", source.getBasedir().toURI().toString());
+            Repository targetRepository = new Repository("target", server.getUrl(target.getBasedir()));
+
+            System.gc();
+
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+
+            long start = System.nanoTime();
+
+            copier.copy(sourceRepository, targetRepository, VERSION, configuration);
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            long peakHeap = 0;
+
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+
+            logger.info("Copied " + artifacts * FILES_PER_ARTIFACT + " files of " + artifacts + " artifacts in "
+                    + millis + " ms, peak heap " + (peakHeap >> 20) + " MB");
+        }
+
+        for (String artifact : target.getArtifacts()) {
+            File artifactDir = new File(target.getBasedir(), artifact);
+            String artifactId = artifactDir.getName();
+
+            assertTrue(artifact, new File(artifactDir, VERSION + "/" + artifactId + "-" + VERSION + ".jar").exists());
+            assertFalse(artifact, new File(artifactDir, VERSION + RepositoryCopier.IN_PROCESS_MARKER).exists());
+
+            String metadata = FileUtils.readFileToString(
+                    new File(artifactDir, RepositoryCopier.MAVEN_METADATA), StandardCharsets.UTF_8);
+
+            assertTrue(metadata, metadata.contains("<version>" + PREVIOUS_VERSION + "</version>"));
+            assertTrue(metadata, metadata.contains("<release>" + VERSION + "</release>"));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.lang.reflect.Proxy;
+import java.util.function.Supplier;
+
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.Wagon;
+
+/**
+ * A {@link WagonManager} for tests that hands out a new {@link LocalCommandWagon} for every request and no
+ * authentication, so that the copier can be exercised without a full Maven runtime.
+ */
+final class FileWagonManager {
+    private FileWagonManager() {}
+
+    static WagonManager create() {
+        return create(LocalCommandWagon::new);
+    }
+
+    /**
+     * @param wagons creates the Wagon handed out for every request
+     */
+    static WagonManager create(Supplier<Wagon> wagons) {
+        return (WagonManager) Proxy.newProxyInstance(
+                FileWagonManager.class.getClassLoader(), new Class<?>[] {WagonManager.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getWagon")) {
+                        return wagons.get();
+                    }
+                    if (method.getName().equals("toString")) {
+                        return "FileWagonManager";
+                    }
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.wagon.CommandExecutionException;
+import org.apache.maven.wagon.CommandExecutor;
+import org.apache.maven.wagon.Streams;
+import org.apache.maven.wagon.providers.file.FileWagon;
+
+/**
+ * A file Wagon that runs commands with the local shell, standing in for an scp target in tests.
+ */
+class LocalCommandWagon extends FileWagon implements CommandExecutor {
+    @Override
+    public void executeCommand(String command) throws CommandExecutionException {
+        executeCommand(command, false);
+    }
+
+    @Override
+    public Streams executeCommand(String command, boolean ignoreFailures) throws CommandExecutionException {
+        try {
+            Process process = new ProcessBuilder("sh", "-c", command)
+                    .redirectErrorStream(true)
+                    .start();
+
+            process.getOutputStream().close();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream is = process.getInputStream()) {
+                IOUtils.copy(is, out);
+            }
+
+            int exitCode = process.waitFor();
+
+            if (exitCode != 0 && !ignoreFailures) {
+                throw new CommandExecutionException("Exit code " + exitCode + " from '" + command + "': " + out);
+            }
+
+            Streams streams = new Streams();
+            streams.setOut(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            streams.setErr("");
+            return streams;
+        } catch (IOException e) {
+            throw new CommandExecutionException("Cannot run '" + command + "'", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandExecutionException("Interrupted while running '" + command + "'", e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+
+public class ParallelDownloaderTest extends TestCase {
+    private static final String ARTIFACT = "org/apache/maven/maven-artifact/2.0.6/";
+
+    private WagonManager wagonManager;
+
+    private Repository repository;
+
+    private File basedir;
+
+    private Logger logger = new ConsoleLogger(Logger.LEVEL_DISABLED, "test");
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        wagonManager = FileWagonManager.create();
+
+        File stagingRepo = new File("src/test/staging-repository");
+
+        repository = new Repository("source", stagingRepo.toURI().toString());
+
+        basedir = new File("target/parallel-downloader");
+
+        FileUtils.deleteDirectory(basedir);
+    }
+
+    public void testDownloadWithSeveralConnections() throws Exception {
+        List<String> paths = Arrays.asList(
+                ARTIFACT + "maven-artifact-2.0.6.pom",
+                ARTIFACT + "maven-artifact-2.0.6.jar",
+                ARTIFACT + "maven-artifact-2.0.6.jar.sha1",
+                ARTIFACT + "maven-artifact-2.0.6-sources.jar",
+                ARTIFACT + "maven-artifact-2.0.6-javadoc.jar");
+
+        Wagon wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+
+        List<String> downloaded;
+        try {
+            downloaded = new ParallelDownloader(wagonManager, repository, 3, logger).download(wagon, paths, basedir);
+        } finally {
+            wagon.disconnect();
+        }
+
+        List<String> expected = new ArrayList<>(paths);
+        expected.sort(null);
+        assertEquals(expected, downloaded);
+
+        for (String path : paths) {
+            File source = new File("src/test/staging-repository/" + path);
+            assertTrue(FileUtils.contentEquals(source, new File(basedir, path)));
+        }
+    }
+
+    public void testFailuresAreReportedPerFile() throws Exception {
+        List<String> paths = Arrays.asList(ARTIFACT + "maven-artifact-2.0.6.pom", ARTIFACT + "missing-1.jar");
+
+        Wagon wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+
+        try {
+            new ParallelDownloader(wagonManager, repository, 2, logger).download(wagon, paths, basedir);
+            fail("Missing file should fail the download");
+        } catch (TransferFailedException e) {
+            assertTrue(e.getMessage().startsWith("1 file(s)"));
+        } finally {
+            wagon.disconnect();
+        }
+
+        assertTrue(new File(basedir, ARTIFACT + "maven-artifact-2.0.6.pom").exists());
+    }
+
+    public void testTransientFailuresAreTriedAgainOverNewConnections() throws Exception {
+        String pom = ARTIFACT + "maven-artifact-2.0.6.pom";
+
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger created = new AtomicInteger();
+
+        // The first attempt fails, as if the connection broke
+        WagonManager flaky = FileWagonManager.create(() -> {
+            created.incrementAndGet();
+
+            return new FileWagon() {
+                @Override
+                public void get(String resourceName, File destination)
+                        throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+                    if (failed.getAndIncrement() == 0) {
+                        throw new TransferFailedException("Connection reset");
+                    }
+
+                    super.get(resourceName, destination);
+                }
+            };
+        });
+
+        AtomicInteger retries = new AtomicInteger();
+
+        ParallelDownloader downloader = new ParallelDownloader(flaky, repository, 1, logger);
+        downloader.setRetryPolicy(new RetryPolicy(2, 0), retries::incrementAndGet);
+
+        downloader.start(null, ParallelDownloader.toDirectory(basedir));
+        downloader.submit(pom);
+        downloader.finish().close();
+
+        assertEquals(1, retries.get());
+        assertEquals(2, created.get());
+        assertTrue(new File(basedir, pom).exists());
+    }
+
+    public void testInterruptedTransfersAreNotTriedAgain() throws Exception {
+        String pom = ARTIFACT + "maven-artifact-2.0.6.pom";
+
+        WagonManager interrupted = FileWagonManager.create(() -> new FileWagon() {
+            @Override
+            public void get(String resourceName, File destination) throws TransferFailedException {
+                throw new TransferFailedException("Interrupted", new InterruptedException());
+            }
+        });
+
+        AtomicInteger retries = new AtomicInteger();
+
+        ParallelDownloader downloader = new ParallelDownloader(interrupted, repository, 1, logger);
+        downloader.setRetryPolicy(new RetryPolicy(3, 0), retries::incrementAndGet);
+
+        downloader.start(null, ParallelDownloader.toDirectory(basedir));
+        downloader.submit(pom);
+
+        try {
+            downloader.finish();
+            fail("The interrupted transfer succeeded");
+        } catch (TransferFailedException e) {
+            assertEquals(0, retries.get());
+        }
+    }
+
+    public void testRetryDoesNotReuseTheBrokenConnectionOfTheCaller() throws Exception {
+        String pom = ARTIFACT + "maven-artifact-2.0.6.pom";
+
+        Wagon broken = new FileWagon() {
+            @Override
+            public void get(String resourceName, File destination) throws TransferFailedException {
+                throw new TransferFailedException("Connection reset");
+            }
+        };
+        broken.connect(repository);
+
+        ParallelDownloader downloader = new ParallelDownloader(wagonManager, repository, 1, logger);
+        downloader.setRetryPolicy(new RetryPolicy(1, 0), () -> {});
+
+        try {
+            downloader.start(broken, ParallelDownloader.toDirectory(basedir));
+            downloader.submit(pom);
+            downloader.finish().close();
+        } finally {
+            broken.disconnect();
+        }
+
+        assertTrue(new File(basedir, pom).exists());
+    }
+
+    public void testLocalFilesAreLinkedAndNeverWrittenThrough() throws Exception {
+        String pom = ARTIFACT + "maven-artifact-2.0.6.pom";
+
+        File localRepo = new File("target/parallel-downloader-source");
+        FileUtils.deleteDirectory(localRepo);
+        FileUtils.writeStringToFile(new File(localRepo, pom), "local", StandardCharsets.UTF_8);
+
+        ParallelDownloader.linkToDirectory(localRepo, basedir).receive(null, pom);
+
+        assertTrue(Files.isSameFile(new File(localRepo, pom).toPath(), new File(basedir, pom).toPath()));
+
+        try {
+            ParallelDownloader.linkToDirectory(localRepo, basedir).receive(null, ARTIFACT + "missing-1.jar");
+            fail("Missing file should not be linked");
+        } catch (ResourceDoesNotExistException e) {
+            // expected
+        }
+
+        // Downloading over the linked file replaces it rather than writing into the local repository
+        Wagon wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+
+        try {
+            ParallelDownloader.toDirectory(basedir).receive(wagon, pom);
+        } finally {
+            wagon.disconnect();
+        }
+
+        assertEquals("local", FileUtils.readFileToString(new File(localRepo, pom), StandardCharsets.UTF_8));
+        assertTrue(FileUtils.contentEquals(new File("src/test/staging-repository/" + pom), new File(basedir, pom)));
+    }
+
+    public void testAdaptiveLimitHalvesOnFailureAndGrowsBack() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit("test", 8, logger);
+        assertEquals(8, limit.getLimit());
+
+        limit.failed();
+        assertEquals(4, limit.getLimit());
+
+        // Failures within a second are taken as the same event
+        limit.failed();
+        assertEquals(4, limit.getLimit());
+
+        // A limit's worth of successes, and then some, as the limit grows while they add up
+        for (int i = 0; i < 5; i++) {
+            limit.succeeded();
+        }
+        assertEquals(5, limit.getLimit());
+    }
+}
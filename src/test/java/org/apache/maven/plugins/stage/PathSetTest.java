@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class PathSetTest extends TestCase {
+    private File spillDirectory = new File("target/path-set-test").getAbsoluteFile();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        FileUtils.deleteDirectory(spillDirectory);
+        spillDirectory.mkdirs();
+    }
+
+    public void testIteratesDistinctPathsInOrder() throws Exception {
+        try (PathSet paths = new PathSet()) {
+            assertPaths(paths);
+        }
+    }
+
+    public void testSpillsToDisk() throws Exception {
+        try (PathSet paths = new PathSet(spillDirectory, 64 * 1024)) {
+            assertPaths(paths);
+
+            assertTrue(spillDirectory.list().length > 0);
+        }
+
+        assertEquals(0, spillDirectory.list().length);
+    }
+
+    private void assertPaths(PathSet paths) {
+        TreeSet<String> expected = new TreeSet<>();
+
+        Random random = new Random(0);
+
+        // Enough paths for several runs to be merged, each added twice
+        for (int i = 0; i < 40000; i++) {
+            String path = "org/apache/maven/g" + random.nextInt(50) + "/a" + random.nextInt(1000) + "/1."
+                    + random.nextInt(5) + "/a-1.jar" + (i % 3 == 0 ? ".sha1" : "");
+
+            expected.add(path);
+
+            paths.add(path);
+            paths.add(path);
+        }
+
+        List<String> actual = new ArrayList<>();
+        paths.forEach(actual::add);
+
+        assertEquals(new ArrayList<>(expected), actual);
+        assertEquals(expected.size(), paths.size());
+
+        for (String path : expected) {
+            assertTrue(path, paths.contains(path));
+            assertFalse(path, paths.contains(path + "x"));
+            assertFalse(path, paths.contains(path.substring(0, path.length() - 1)));
+        }
+
+        assertFalse(paths.contains(""));
+        assertFalse(paths.contains("zzz"));
+    }
+}
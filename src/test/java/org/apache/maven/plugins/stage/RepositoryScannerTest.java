@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.artifact.manager.WagonManager;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.repository.Repository;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+
+public class RepositoryScannerTest extends TestCase {
+    private WagonManager wagonManager = FileWagonManager.create();
+
+    private Logger logger = new ConsoleLogger(Logger.LEVEL_DISABLED, "test");
+
+    private File stagingRepo = new File("src/test/staging-repository");
+
+    private Repository repository = new Repository("source", stagingRepo.toURI().toString());
+
+    public void testScanFindsAllFiles() throws Exception {
+        Set<String> expected;
+        try (Stream<Path> walk = Files.walk(stagingRepo.toPath())) {
+            expected = walk.filter(Files::isRegularFile)
+                    .map(p -> stagingRepo.toPath().relativize(p).toString().replace('\\', '/'))
+                    .collect(Collectors.toCollection(TreeSet::new));
+        }
+
+        for (int threads : new int[] {1, 4}) {
+            Set<String> found = new ConcurrentSkipListSet<>();
+
+            Wagon wagon = wagonManager.getWagon(repository);
+            wagon.connect(repository);
+            try {
+                new RepositoryScanner(wagonManager, repository, threads, logger).scan(wagon, "", found::add);
+            } finally {
+                wagon.disconnect();
+            }
+
+            assertEquals(expected, found);
+        }
+    }
+
+    public void testScanScopedToVersionAndFilteredByArtifact() throws Exception {
+        File repo = new File("target/scan-filter-repository");
+        FileUtils.deleteDirectory(repo);
+
+        for (String path : Arrays.asList(
+                "g/a/1.0/a-1.0.jar",
+                "g/a/2.0/a-2.0.jar",
+                "g/a/maven-metadata.xml",
+                "g/b/2.0/b-2.0.jar",
+                "g/b/maven-metadata.xml",
+                "g/old/1.0/old-1.0.jar",
+                "g/old/maven-metadata.xml",
+                "g/sub/c/2.0/c-2.0.jar",
+                "g/sub/c/maven-metadata.xml",
+                "h/d/2.0/d-2.0.jar",
+                "h/d/maven-metadata.xml")) {
+            FileUtils.touch(new File(repo, path));
+        }
+
+        Repository filtered = new Repository("filtered", repo.toURI().toString());
+
+        ScanFilter filter = new ScanFilter("2.0", Collections.singleton("g*"), Collections.singleton("g:b"));
+
+        Set<String> found = new ConcurrentSkipListSet<>();
+
+        Wagon wagon = wagonManager.getWagon(filtered);
+        wagon.connect(filtered);
+        try {
+            new RepositoryScanner(wagonManager, filtered, 2, filter, logger).scan(wagon, "", found::add);
+        } finally {
+            wagon.disconnect();
+        }
+
+        // g/old holds versions, but not the staged one: its metadata is left as it is
+        assertEquals(
+                new TreeSet<>(Arrays.asList(
+                        "g/a/2.0/a-2.0.jar",
+                        "g/a/maven-metadata.xml",
+                        "g/sub/c/2.0/c-2.0.jar",
+                        "g/sub/c/maven-metadata.xml")),
+                found);
+    }
+
+    public void testPluginGroupMetadataDoesNotHideItsPlugins() throws Exception {
+        File repo = new File("target/plugin-group-repository");
+        FileUtils.deleteDirectory(repo);
+
+        for (String path : Arrays.asList(
+                "org/plugins/maven-metadata.xml",
+                "org/plugins/maven-metadata.xml.sha1",
+                "org/plugins/deploy/1.0/deploy-1.0.jar",
+                "org/plugins/deploy/maven-metadata.xml",
+                "org/plugins/stage/2.0/stage-2.0.jar",
+                "org/plugins/stage/maven-metadata.xml")) {
+            FileUtils.touch(new File(repo, path));
+        }
+
+        Repository plugins = new Repository("plugins", repo.toURI().toString());
+
+        ScanFilter scoped = new ScanFilter("2.0", Collections.emptyList(), Collections.emptyList());
+
+        assertEquals(
+                new TreeSet<>(Arrays.asList(
+                        "org/plugins/maven-metadata.xml",
+                        "org/plugins/maven-metadata.xml.sha1",
+                        "org/plugins/stage/2.0/stage-2.0.jar",
+                        "org/plugins/stage/maven-metadata.xml")),
+                scan(plugins, scoped));
+
+        assertEquals(scan(plugins, scoped), list(plugins, new FindListing(scoped, logger)));
+
+        ScanFilter included = new ScanFilter(null, Collections.singleton("org.plugins:stage"), Collections.emptyList());
+
+        assertEquals(
+                new TreeSet<>(
+                        Arrays.asList("org/plugins/stage/2.0/stage-2.0.jar", "org/plugins/stage/maven-metadata.xml")),
+                scan(plugins, included));
+    }
+
+    public void testFailureOfTheConsumerIsThrown() throws Exception {
+        String failing = "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.pom";
+
+        Wagon wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+        try {
+            new RepositoryScanner(wagonManager, repository, 4, logger).scan(wagon, "", path -> {
+                if (path.equals(failing)) {
+                    throw new IllegalStateException("Cannot take " + path);
+                }
+            });
+            fail("The failure of the consumer was swallowed");
+        } catch (IllegalStateException e) {
+            assertEquals("Cannot take " + failing, e.getMessage());
+        } finally {
+            wagon.disconnect();
+        }
+    }
+
+    private Set<String> scan(Repository repository, ScanFilter filter) throws Exception {
+        Set<String> found = new ConcurrentSkipListSet<>();
+
+        Wagon wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+        try {
+            new RepositoryScanner(wagonManager, repository, 2, filter, logger).scan(wagon, "", found::add);
+        } finally {
+            wagon.disconnect();
+        }
+
+        return found;
+    }
+
+    public void testFindAndIndexListingsMatchScan() throws Exception {
+        ScanFilter filter = new ScanFilter("2.0.6", Collections.emptyList(), Collections.emptyList());
+
+        File index = new File(stagingRepo, "files.txt");
+
+        Set<String> scanned = list(new RepositoryScanner(wagonManager, repository, 1, filter, logger));
+
+        assertFalse(scanned.isEmpty());
+
+        assertEquals(scanned, list(new FindListing(filter, logger)));
+
+        StringBuilder lines = new StringBuilder("# index\n");
+        for (String path : list(new RepositoryScanner(wagonManager, repository, 1, logger))) {
+            lines.append("12 1700000000.0 ").append(path).append('\n');
+        }
+        FileUtils.writeStringToFile(index, lines.toString(), StandardCharsets.UTF_8);
+        try {
+            assertEquals(scanned, list(new IndexListing("files.txt", filter, logger)));
+        } finally {
+            index.delete();
+        }
+
+        assertNull(list(new IndexListing("files.txt", filter, logger)));
+    }
+
+    /**
+     * @return the files listed, or <code>null</code> if the strategy is not available
+     */
+    private Set<String> list(ListingStrategy strategy) throws Exception {
+        return list(repository, strategy);
+    }
+
+    private Set<String> list(Repository repository, ListingStrategy strategy) throws Exception {
+        Set<String> found = new ConcurrentSkipListSet<>();
+
+        Wagon wagon = wagonManager.getWagon(repository);
+        wagon.connect(repository);
+        try {
+            return strategy.list(wagon, "", found::add) ? found : null;
+        } finally {
+            wagon.disconnect();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.authorization.AuthorizationException;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.apache.maven.wagon.repository.Repository;
+
+public class StagingArchiveTest extends TestCase {
+    private static final String JAR = "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.jar";
+
+    private static final String POM = "org/apache/maven/maven-artifact/2.0.6/maven-artifact-2.0.6.pom";
+
+    private File stagingRepo = new File("src/test/staging-repository");
+
+    public void testTransferMarksVersionDirectoryInProcess() throws Exception {
+        File file = new File("target/staging-archive-test.zip");
+
+        Wagon wagon = new FileWagon();
+        wagon.connect(new Repository("source", stagingRepo.toURI().toString()));
+
+        try (StagingArchive archive =
+                new StagingArchive(file, "2.0.6", Arrays.asList(RepositoryCopier.SHA1, RepositoryCopier.SHA256))) {
+            archive.transfer(wagon, JAR, true);
+            archive.transfer(wagon, POM, false);
+
+            String directory = "org/apache/maven/maven-artifact/2.0.6";
+
+            List<String> commands = new ArrayList<>();
+            archive.getMoveCommands().forEach(commands::add);
+
+            assertEquals(Collections.singletonList("mv " + directory + ".rip " + directory), commands);
+        } finally {
+            wagon.disconnect();
+        }
+
+        try (ZipFile zip = new ZipFile(file)) {
+            for (String path : Arrays.asList(JAR, POM)) {
+                ZipEntry entry = zip.getEntry(path.replace("/2.0.6/", "/2.0.6.rip/"));
+                assertNotNull(path, entry);
+
+                try (InputStream is = zip.getInputStream(entry)) {
+                    assertTrue(Arrays.equals(
+                            FileUtils.readFileToByteArray(new File(stagingRepo, path)), IOUtils.toByteArray(is)));
+                }
+
+                ZipEntry checksum = zip.getEntry(entry.getName() + ".sha256");
+                assertNotNull(path, checksum);
+
+                try (InputStream is = zip.getInputStream(checksum)) {
+                    assertEquals(
+                            new Checksums(Collections.singleton(RepositoryCopier.SHA256))
+                                    .digest(new File(stagingRepo, path))
+                                    .get(RepositoryCopier.SHA256),
+                            IOUtils.toString(is, StandardCharsets.US_ASCII));
+                }
+            }
+        }
+    }
+
+    public void testFailedStreamingTransferCanBeTriedAgain() throws Exception {
+        File file = new File("target/staging-archive-retry-test.zip");
+
+        AtomicBoolean failed = new AtomicBoolean();
+
+        Wagon wagon = new FileWagon() {
+            @Override
+            public void getToStream(String resourceName, OutputStream stream) throws TransferFailedException,
+                    ResourceDoesNotExistException, AuthorizationException {
+                if (!failed.getAndSet(true)) {
+                    try {
+                        stream.write(new byte[100]);
+                    } catch (IOException e) {
+                        throw new TransferFailedException(e.getMessage(), e);
+                    }
+
+                    throw new TransferFailedException("Connection reset");
+                }
+
+                super.getToStream(resourceName, stream);
+            }
+        };
+        wagon.connect(new Repository("source", stagingRepo.toURI().toString()));
+
+        try (StagingArchive archive =
+                new StagingArchive(file, "2.0.6", Collections.singleton(RepositoryCopier.SHA256))) {
+            try {
+                archive.transfer(wagon, JAR, true);
+                fail("The first attempt did not fail");
+            } catch (TransferFailedException e) {
+                assertEquals("Connection reset", e.getMessage());
+            }
+
+            archive.transfer(wagon, JAR, true);
+        } finally {
+            wagon.disconnect();
+        }
+
+        // The last entry of a name is the one the unpacking leaves behind
+        String name = JAR.replace("/2.0.6/", "/2.0.6.rip/");
+
+        try (ZipFile zip = new ZipFile(file)) {
+            ZipEntry last = null;
+
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.getName().equals(name)) {
+                    last = entry;
+                }
+            }
+
+            assertNotNull(last);
+
+            try (InputStream is = zip.getInputStream(last)) {
+                assertTrue(Arrays.equals(
+                        FileUtils.readFileToByteArray(new File(stagingRepo, JAR)), IOUtils.toByteArray(is)));
+            }
+        }
+    }
+
+    public void testParallelCompressionStoresCompressedFiles() throws Exception {
+        File file = new File("target/staging-archive-parallel-test.zip");
+
+        Wagon wagon = new FileWagon();
+        wagon.connect(new Repository("source", stagingRepo.toURI().toString()));
+
+        try (StagingArchive archive =
+                new StagingArchive(
+                        Collections.singletonList(file), "2.0.6", Collections.singleton(RepositoryCopier.SHA256), 3)) {
+            archive.transfer(wagon, JAR, true);
+            archive.add(POM, new File(stagingRepo, POM));
+        } finally {
+            wagon.disconnect();
+        }
+
+        try (ZipFile zip = new ZipFile(file)) {
+            for (String path : Arrays.asList(JAR, POM)) {
+                ZipEntry entry = zip.getEntry(path.replace("/2.0.6/", "/2.0.6.rip/"));
+                assertNotNull(path, entry);
+                assertEquals(path, path.endsWith(".jar") ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+
+                try (InputStream is = zip.getInputStream(entry)) {
+                    assertTrue(Arrays.equals(
+                            FileUtils.readFileToByteArray(new File(stagingRepo, path)), IOUtils.toByteArray(is)));
+                }
+
+                assertNotNull(path, zip.getEntry(entry.getName() + ".sha256"));
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Creates a repository of synthetic artifacts for the benchmarks and the end-to-end test. Every artifact has a jar
+ * and a pom, their <code>md5</code> and <code>sha1</code> files, and a <code>maven-metadata.xml</code> with its
+ * checksums, so that it holds nine files. The artifacts are spread over groups nested <code>depth</code> levels
+ * deep.
+ */
+final class SyntheticRepository {
+    static final String VERSION = "1.0";
+
+    private final File basedir;
+
+    private final List<String> artifacts = new ArrayList<>();
+
+    private SyntheticRepository(File basedir) {
+        this.basedir = basedir;
+    }
+
+    /**
+     * @param basedir the directory to create the repository in, deleted first
+     * @param count the number of artifacts
+     * @param depth the number of group directories below <code>org/bench</code>
+     * @param size the size of every jar, in bytes
+     */
+    static SyntheticRepository create(File basedir, int count, int depth, int size) throws IOException {
+        return create(basedir, count, depth, size, VERSION);
+    }
+
+    /**
+     * @param version the version of the artifacts
+     */
+    static SyntheticRepository create(File basedir, int count, int depth, int size, String version)
+            throws IOException {
+        FileUtils.deleteDirectory(basedir);
+
+        SyntheticRepository repository = new SyntheticRepository(basedir);
+
+        // The same content for every run, random enough not to compress away
+        Random random = new Random(count);
+
+        byte[] jar = new byte[size];
+
+        for (int i = 0; i < count; i++) {
+            StringBuilder group = new StringBuilder("org/bench");
+
+            for (int d = 0; d < depth; d++) {
+                group.append("/g").append((i >> (2 * d)) & 3);
+            }
+
+            String artifactId = "a" + i;
+            String artifact = group + "/" + artifactId;
+            String prefix = artifact + "/" + version + "/" + artifactId + "-" + version;
+
+            random.nextBytes(jar);
+
+            repository.write(prefix + ".jar", jar);
+            repository.write(prefix + ".pom", pom(group.toString().replace('/', '.'), artifactId, version));
+            repository.write(
+                    artifact + "/" + RepositoryCopier.MAVEN_METADATA,
+                    metadata(group.toString().replace('/', '.'), artifactId, version));
+
+            repository.artifacts.add(artifact);
+        }
+
+        return repository;
+    }
+
+    File getBasedir() {
+        return basedir;
+    }
+
+    /**
+     * @return the paths of the artifact directories, relative to the repository root
+     */
+    List<String> getArtifacts() {
+        return Collections.unmodifiableList(artifacts);
+    }
+
+    static byte[] metadata(String groupId, String artifactId, String version) {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<metadata>\n  <groupId>" + groupId + "</groupId>\n"
+                        + "  <artifactId>" + artifactId + "</artifactId>\n  <versioning>\n"
+                        + "    <latest>" + version + "</latest>\n    <release>" + version + "</release>\n"
+                        + "    <versions>\n      <version>" + version + "</version>\n    </versions>\n"
+                        + "    <lastUpdated>20200407210400</lastUpdated>\n  </versioning>\n</metadata>\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] pom(String groupId, String artifactId, String version) {
+        return ("<project>\n  <modelVersion>4.0.0</modelVersion>\n  <groupId>" + groupId + "</groupId>\n"
+                        + "  <artifactId>" + artifactId + "</artifactId>\n  <version>" + version + "</version>\n"
+                        + "</project>\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(String path, byte[] content) throws IOException {
+        File file = new File(basedir, path);
+
+        FileUtils.writeByteArrayToFile(file, content);
+
+        Checksums checksums = new Checksums(Arrays.asList(RepositoryCopier.MD5, RepositoryCopier.SHA1));
+        checksums.update(content, 0, content.length);
+
+        for (Map.Entry<String, String> checksum : checksums.digest().entrySet()) {
+            FileUtils.writeStringToFile(
+                    new File(basedir, path + "." + checksum.getKey()), checksum.getValue(), StandardCharsets.US_ASCII);
+        }
+    }
+}
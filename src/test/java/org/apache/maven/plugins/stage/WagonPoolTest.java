@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.maven.plugins.stage;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.providers.file.FileWagon;
+import org.apache.maven.wagon.repository.Repository;
+
+public class WagonPoolTest extends TestCase {
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicInteger disconnected = new AtomicInteger();
+
+    private final Repository source =
+            new Repository("source", new File("src/test/staging-repository").toURI().toString());
+
+    private final Repository target =
+            new Repository("target", new File("src/test/target-repository").toURI().toString());
+
+    public void testReleasedWagonsAreReusedPerRepository() throws Exception {
+        try (WagonPool pool = new WagonPool(FileWagonManager.create(this::newWagon), 60000, null)) {
+            Wagon first = pool.acquire(source);
+            Wagon second = pool.acquire(source);
+            assertNotSame(first, second);
+
+            pool.release(first);
+            pool.release(second);
+            assertEquals(2, pool.getIdleCount());
+
+            assertSame(second, pool.acquire(source));
+
+            Wagon other = pool.acquire(target);
+            assertNotSame(first, other);
+            assertEquals(target, other.getRepository());
+            assertEquals(3, created.get());
+
+            pool.release(other);
+            assertEquals(2, pool.getIdleCount());
+        }
+    }
+
+    public void testIdleWagonsAreDisconnected() throws Exception {
+        try (WagonPool pool = new WagonPool(FileWagonManager.create(this::newWagon), 60000, null)) {
+            Wagon wagon = pool.acquire(source);
+            pool.release(wagon);
+
+            pool.setIdleTimeout(0);
+            assertEquals(0, pool.getIdleCount());
+            assertEquals(1, disconnected.get());
+
+            // Without an idle timeout nothing is kept
+            pool.release(pool.acquire(source));
+            assertEquals(0, pool.getIdleCount());
+            assertEquals(2, created.get());
+            assertEquals(2, disconnected.get());
+        }
+    }
+
+    private Wagon newWagon() {
+        created.incrementAndGet();
+
+        return new FileWagon() {
+            @Override
+            public void disconnect() throws ConnectionException {
+                disconnected.incrementAndGet();
+
+                super.disconnect();
+            }
+        };
+    }
+}